@@ -9,6 +9,18 @@ import java.util.concurrent.TimeUnit;
 
 import com.fightinggame.network.GameClient;
 import com.fightinggame.network.GameMessage;
+import com.fightinggame.network.GameServer;
+import com.fightinggame.network.InputEncoder;
+import com.fightinggame.network.InputFrame;
+import com.fightinggame.network.LatencyStats;
+import com.fightinggame.network.MatchSnapshot;
+import com.fightinggame.network.PositionSnapshot;
+import com.fightinggame.network.RttProbe;
+import com.fightinggame.network.SnapshotDecoder;
+import com.fightinggame.network.SnapshotEncoder;
+import com.fightinggame.simulation.ClientPrediction;
+import com.fightinggame.simulation.MatchSimulation;
+import com.fightinggame.simulation.RollbackSession;
 
 import javafx.animation.AnimationTimer;
 import javafx.animation.KeyFrame;
@@ -36,6 +48,7 @@ public class Game {
     private static final int MAX_RECONNECT_ATTEMPTS = 5;
     private static final int RECONNECT_DELAY_MS = 2000;
     private static final int ATTACK_SCORE_COOLDOWN = 1000; // 攻擊得分冷卻時間（毫秒）
+    private static final int DIRECT_PORT_OFFSET = 1; // 直連端口 = 服務器端口 + 1
 
     private Pane root;
     private Player player1;
@@ -52,15 +65,86 @@ public class Game {
     private int reconnectAttempts = 0;
     private String serverAddress;
     private int serverPort;
+    private GameClient.TransportType transportType;
+    private GameServer localServer;
+    private String roomId;
+    // 直連模式：對戰消息直接在兩個玩家之間傳送，服務器連線只用來比較轉發延遲
+    private boolean directMode;
+    private GameClient relayClient;
+    private final RttProbe peerProbe = new RttProbe();
+    private final RttProbe relayProbe = new RttProbe();
+    private long redirectStartNanos;
+    // 配對模式：先在大廳排隊，配對成功後才知道房間和自己的座位
+    private boolean waitingForMatch;
+    private int rating;
+    // 服務器發的會話令牌：斷線重連時出示，拿回原本的座位和錯過的事件
+    private long sessionToken;
+    private long reconnectStartNanos;
+    // 距離上次發送位置的幀數
+    private int positionTicks;
+    private boolean reconnecting;
     private int player1Hits = 0;
     private int player2Hits = 0;
     private long lastPlayer1ScoreTime = 0;
     private long lastPlayer2ScoreTime = 0;
+    // 跨重連保留，序號才不會和對方手上的舊快照衝突
+    private final SnapshotEncoder snapshotEncoder = new SnapshotEncoder();
+    private final SnapshotDecoder snapshotDecoder = new SnapshotDecoder();
+    // 權威模式：伺服器模擬對局，這裡每幀只送按鍵，照伺服器的狀態畫出對手。
+    // 收到第一個 MATCH_SNAPSHOT 時自動切換。自己的角色用本地預測，不等來回
+    private boolean authoritative;
+    private final InputEncoder inputEncoder = new InputEncoder();
+    private ClientPrediction prediction;
+    // 回滾模式：雙方只交換按鍵，各自跑同一個模擬，本地按鍵不加延遲；
+    // 勾選了或收到對手的第一個按鍵時開始
+    private boolean rollbackMode;
+    private RollbackSession rollback;
+    private boolean restartRequested;
 
     public Game(boolean isHost, String serverAddress, int serverPort) {
+        this(isHost, serverAddress, serverPort, GameClient.TransportType.TCP);
+    }
+
+    // 主機和服務器在同一個進程內，直接透過記憶體交換消息
+    public Game(boolean isHost, GameServer localServer) {
+        this(isHost, localServer, false, GameServer.DEFAULT_ROOM);
+    }
+
+    public Game(boolean isHost, GameServer localServer, boolean directMode, String roomId) {
+        this.isHost = isHost;
+        this.serverAddress = "localhost";
+        this.serverPort = localServer.getPort();
+        this.transportType = GameClient.TransportType.LOOPBACK;
+        this.localServer = localServer;
+        this.directMode = directMode;
+        this.roomId = roomId;
+        initializeGame();
+    }
+
+    public Game(boolean isHost, String serverAddress, int serverPort, GameClient.TransportType transportType) {
+        this(isHost, serverAddress, serverPort, transportType, false, GameServer.DEFAULT_ROOM);
+    }
+
+    // 同一個服務器可以同時進行多場對戰，只有同一個房間的玩家會收到彼此的消息
+    public Game(boolean isHost, String serverAddress, int serverPort, GameClient.TransportType transportType,
+                boolean directMode, String roomId) {
         this.isHost = isHost;
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        this.transportType = transportType;
+        this.directMode = directMode;
+        this.roomId = roomId;
+        initializeGame();
+    }
+
+    // 不用交換IP：連到服務器排隊，由大廳依等級分配對並分配房間和座位
+    public Game(String serverAddress, int serverPort, GameClient.TransportType transportType, int rating) {
+        this.isHost = false;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.transportType = transportType;
+        this.waitingForMatch = true;
+        this.rating = rating;
         initializeGame();
     }
 
@@ -92,6 +176,10 @@ public class Game {
         connectToServer(serverAddress);
     }
 
+    public void setRollbackMode(boolean rollbackMode) {
+        this.rollbackMode = rollbackMode;
+    }
+
     public void start() {
         gameLoop.start();
     }
@@ -203,6 +291,9 @@ public class Game {
             System.out.println("Not connected to server");
             return;
         }
+        if (waitingForMatch || authoritative || rollback != null) {
+            return;
+        }
 
         if (isHost) {
             handleHostInput(code);
@@ -230,8 +321,10 @@ public class Game {
                 break;
             case SPACE:
                 if (pressedKeys.contains(KeyCode.SPACE)) {
-                    player1.attack();
-                    sendAttackUpdate(player1);
+                    // 按住攻擊鍵時只在真正出手時發送，不會每幀都發
+                    if (player1.attack()) {
+                        sendAttackUpdate(player1);
+                    }
                 }
                 break;
         }
@@ -256,8 +349,9 @@ public class Game {
                 break;
             case ENTER:
                 if (pressedKeys.contains(KeyCode.ENTER)) {
-                    player2.attack();
-                    sendAttackUpdate(player2);
+                    if (player2.attack()) {
+                        sendAttackUpdate(player2);
+                    }
                 }
                 break;
         }
@@ -273,6 +367,8 @@ public class Game {
                 if (now - lastUpdate >= UPDATE_INTERVAL) {
                     update();
                     processNetworkMessages();
+                    // 每個 tick 只送出一次，這一幀產生的所有消息一起發送
+                    flushNetwork();
                     lastUpdate = now;
                 }
             }
@@ -281,10 +377,32 @@ public class Game {
 
     private void connectToServer(String serverAddress) {
         try {
-            gameClient = new GameClient(serverAddress, serverPort);
+            if (directMode) {
+                connectDirect(serverAddress);
+            } else {
+                gameClient = localServer != null
+                        ? new GameClient(localServer)
+                        : new GameClient(serverAddress, serverPort, transportType);
+            }
+            // 直連模式下服務器只負責會合，房間加在服務器連線上
+            GameClient serverClient = directMode ? relayClient : gameClient;
+            if (serverClient.isConnected()) {
+                if (waitingForMatch) {
+                    serverClient.queueMatch(rating);
+                } else if (sessionToken != 0 && !directMode) {
+                    serverClient.resumeSession(roomId, sessionToken, isHost ? 1 : 2);
+                } else {
+                    serverClient.joinRoom(roomId, isHost ? 1 : 2);
+                }
+            }
             if (gameClient.isConnected()) {
-                connectionStatusText.setText("Connected to server");
+                connectionStatusText.setText(directMode
+                        ? "Connected directly to peer"
+                        : waitingForMatch
+                        ? "Waiting for opponent (rating " + rating + ")"
+                        : "Connected to server (" + transportType + ")");
                 reconnectAttempts = 0;
+                reconnecting = false;
                 if (gameLoop != null) {
                     gameLoop.start();
                 }
@@ -297,8 +415,99 @@ public class Game {
         }
     }
 
+    // 主機監聽直連端口，加入方直接連到主機；服務器仍然連著，只用來測量轉發路徑的延遲
+    private void connectDirect(String serverAddress) {
+        int directPort = serverPort + DIRECT_PORT_OFFSET;
+        gameClient = isHost
+                ? new GameClient("localhost", directPort, GameClient.TransportType.DIRECT_HOST)
+                : new GameClient(serverAddress, directPort, GameClient.TransportType.TCP);
+        connectRelay(serverAddress);
+    }
+
+    private void connectRelay(String serverAddress) {
+        if (relayClient != null) {
+            relayClient.disconnect();
+        }
+        relayClient = localServer != null
+                ? new GameClient(localServer)
+                : new GameClient(serverAddress, serverPort, transportType);
+        if (!relayClient.isConnected()) {
+            System.out.println("無法連接服務器，只使用直連");
+        }
+    }
+
+    // 房間被遷移到另一台服務器：換地址重新連線，分數、位置和快照序號都保留在本地
+    private void redirectTo(String target) {
+        int colon = target.lastIndexOf(':');
+        serverAddress = target.substring(0, colon);
+        serverPort = Integer.parseInt(target.substring(colon + 1));
+        if (localServer != null) {
+            // 房間離開了主機的服務器，改用 TCP 連過去
+            localServer = null;
+            transportType = GameClient.TransportType.TCP;
+        }
+        System.out.println("房間遷移到 " + target);
+        redirectStartNanos = System.nanoTime();
+        // 新服務器不認得舊的會話，直接重新加入房間
+        sessionToken = 0;
+        if (directMode) {
+            // 對戰走直連，不受影響，只換會合用的服務器連線
+            connectRelay(serverAddress);
+            if (relayClient.isConnected()) {
+                relayClient.joinRoom(roomId, isHost ? 1 : 2);
+            }
+        } else {
+            gameClient.disconnect();
+            connectToServer(serverAddress);
+        }
+    }
+
+    // 座位 1 控制 Player 1（相當於主機），座位 2 控制 Player 2
+    private void onMatchFound(GameMessage message) {
+        if (!waitingForMatch) {
+            return;
+        }
+        waitingForMatch = false;
+        roomId = (String) message.getData();
+        isHost = message.getPlayerId() == 1;
+        System.out.println("配對成功: 房間 " + roomId + "，座位 " + message.getPlayerId());
+        connectionStatusText.setText("Matched in " + roomId + " as Player " + message.getPlayerId());
+        gameClient.joinRoom(roomId, message.getPlayerId());
+    }
+
+    // 恢復成功時，房間目前的狀態和錯過的事件緊接著這條消息，照一般消息處理即可
+    private void onResync(GameMessage message) {
+        if (message.getPlayerId() != 1) {
+            System.out.println("會話已失效，重新加入房間");
+            sessionToken = 0;
+            gameClient.joinRoom(roomId, isHost ? 1 : 2);
+            return;
+        }
+        System.out.println("已恢復連線，補上 " + message.getData() + " 條消息，耗時 "
+                + (System.nanoTime() - reconnectStartNanos) / 1_000_000 + " ms");
+    }
+
+    private void onRoomJoined(GameMessage message) {
+        System.out.println("已加入房間: " + message.getData());
+        if (redirectStartNanos != 0) {
+            System.out.println("遷移暫停時間: " + (System.nanoTime() - redirectStartNanos) / 1_000_000 + " ms");
+            redirectStartNanos = 0;
+        }
+    }
+
+    // 對戰中連線斷了：保留本地狀態，立即重連一次，之後每隔一段時間再試
+    private void onConnectionLost() {
+        System.out.println("連線中斷，嘗試恢復");
+        reconnecting = true;
+        reconnectStartNanos = System.nanoTime();
+        connectionStatusText.setText("Connection lost - Resuming...");
+        gameClient.disconnect();
+        connectToServer(serverAddress);
+    }
+
     private void handleConnectionFailure() {
         connectionStatusText.setText("Connection failed - Retrying...");
+        reconnecting = true;
         if (reconnectAttempts < MAX_RECONNECT_ATTEMPTS) {
             reconnectAttempts++;
             if (reconnectExecutor == null) {
@@ -312,6 +521,67 @@ public class Game {
         }
     }
 
+    private void flushNetwork() {
+        if (gameClient != null && gameClient.isConnected()) {
+            gameClient.flush();
+        }
+        if (relayClient != null && relayClient.isConnected()) {
+            relayClient.flush();
+        }
+    }
+
+    private void sendPings() {
+        int playerId = isHost ? 1 : 2;
+        long now = System.nanoTime();
+        GameMessage ping = peerProbe.nextPing(playerId, now);
+        if (ping != null) {
+            gameClient.sendMessage(ping);
+            updateLatencyText();
+        }
+        if (relayClient != null && relayClient.isConnected()) {
+            GameMessage relayPing = relayProbe.nextPing(playerId, now);
+            if (relayPing != null) {
+                relayClient.sendMessage(relayPing);
+            }
+        }
+    }
+
+    // 顯示連線的 RTT、抖動和位置發送頻率，以及到對手的 RTT；
+    // 直連模式下同時顯示經過服務器轉發的 RTT 和節省的時間
+    private void updateLatencyText() {
+        if (!gameClient.hasRttSample() && !peerProbe.hasSample()) {
+            return;
+        }
+        String status = directMode ? "Direct" : "Connected (" + transportType + ")";
+        if (gameClient.hasRttSample()) {
+            status += String.format(" | RTT %.1f ms ±%.1f | %d Hz", gameClient.getRttMillis(),
+                    gameClient.getJitterMillis(), 60 / gameClient.getPositionSendInterval());
+        }
+        if (peerProbe.hasSample()) {
+            status += String.format(" | peer %.1f ms", peerProbe.getRttMillis());
+        }
+        if (prediction != null) {
+            status += String.format(" | mispredicted %.1f%%", prediction.getMispredictionRate() * 100);
+        }
+        if (rollback != null) {
+            status += String.format(" | rollback avg %.1f max %d | waits %d", rollback.getAverageRollback(),
+                    rollback.getMaxRollback(), rollback.getWaits());
+        }
+        // 對手位置（權威模式下是伺服器狀態，回滾模式下是對手按鍵）從發出到收到的單程延遲，
+        // 兩端的對局時鐘同步後才有意義
+        LatencyStats latency = gameClient.getLatencyStats();
+        GameMessage.MessageType stateType = authoritative ? GameMessage.MessageType.MATCH_SNAPSHOT
+                : rollback != null ? GameMessage.MessageType.PLAYER_INPUT : GameMessage.MessageType.PLAYER_POSITION;
+        if (latency.hasSamples(stateType)) {
+            status += String.format(" | one-way %.1f ms", latency.getAverageMillis(stateType));
+        }
+        if (directMode && relayProbe.hasSample()) {
+            status += String.format(" | relay %.1f ms | saved %.1f ms",
+                    relayProbe.getRttMillis(), relayProbe.getRttMillis() - peerProbe.getRttMillis());
+        }
+        connectionStatusText.setText(status);
+    }
+
     private void checkAttackCollision(Player attacker, Player defender) {
         if (attacker.isAttacking()) {
             Bounds attackBounds = attacker.getAttackBounds();
@@ -392,37 +662,50 @@ public class Game {
     }
 
     private void update() {
-        if (gameClient != null && gameClient.isConnected()) {
-            // 處理輸入
-            for (KeyCode key : pressedKeys) {
-                handleInput(key);
-            }
-
-            // 同步位置和狀態
-            if (isHost) {
-                sendPositionUpdate(player1);
+        if (gameClient != null && !gameClient.isConnected() && !reconnecting && localServer == null) {
+            onConnectionLost();
+        }
+        // 排隊中還沒有房間，不發送對戰消息
+        if (gameClient != null && gameClient.isConnected() && !waitingForMatch) {
+            if (authoritative) {
+                sendInput();
+            } else if (rollbackMode || rollback != null) {
+                advanceRollback();
             } else {
-                sendPositionUpdate(player2);
+                // 處理輸入
+                for (KeyCode key : pressedKeys) {
+                    handleInput(key);
+                }
+
+                // 同步位置和狀態，發送頻率隨連線品質調整
+                if (++positionTicks >= gameClient.getPositionSendInterval()) {
+                    positionTicks = 0;
+                    sendPositionUpdate(isHost ? player1 : player2);
+                }
             }
+            sendPings();
         }
 
-        // 更新玩家狀態
-        player1.update();
-        player2.update();
+        // 權威模式下物理和命中判定都在伺服器，回滾模式下在 RollbackSession
+        if (!authoritative && rollback == null) {
+            // 更新玩家狀態
+            player1.update();
+            player2.update();
 
-        // 應用物理
-        player1.applyGravity(GRAVITY);
-        player2.applyGravity(GRAVITY);
+            // 應用物理
+            player1.applyGravity(GRAVITY);
+            player2.applyGravity(GRAVITY);
 
-        checkGroundCollision(player1);
-        checkGroundCollision(player2);
+            checkGroundCollision(player1);
+            checkGroundCollision(player2);
 
-        // 檢查攻擊碰撞
-        if (player1.isAttacking()) {
-            checkAttackCollision(player1, player2);
-        }
-        if (player2.isAttacking()) {
-            checkAttackCollision(player2, player1);
+            // 檢查攻擊碰撞
+            if (player1.isAttacking()) {
+                checkAttackCollision(player1, player2);
+            }
+            if (player2.isAttacking()) {
+                checkAttackCollision(player2, player1);
+            }
         }
 
         processNetworkMessages();
@@ -463,11 +746,60 @@ public class Game {
                     case GAME_STATE:
                         handleGameStateUpdate(message);
                         break;
+                    case PING:
+                        // 從哪條路徑收到就從哪條路徑回覆
+                        gameClient.sendMessage(RttProbe.pongFor(message, isHost ? 1 : 2));
+                        break;
+                    case PONG:
+                        peerProbe.onPong(message, System.nanoTime());
+                        break;
+                    case JOIN_ROOM:
+                        onRoomJoined(message);
+                        break;
+                    case REDIRECT:
+                        redirectTo((String) message.getData());
+                        break;
+                    case MATCH_FOUND:
+                        onMatchFound(message);
+                        break;
+                    case SESSION:
+                        sessionToken = (Long) message.getData();
+                        break;
+                    case RESYNC:
+                        onResync(message);
+                        break;
+                    case MATCH_SNAPSHOT:
+                        handleMatchSnapshot(message);
+                        break;
+                    case PLAYER_INPUT:
+                        handleRemoteInput(message);
+                        break;
                 }
             } catch (Exception e) {
                 System.out.println("Error processing message: " + e.getMessage());
             }
         }
+        processRelayMessages();
+    }
+
+    // 直連模式下服務器連線只有延遲探測消息
+    private void processRelayMessages() {
+        if (relayClient == null || !relayClient.isConnected()) {
+            return;
+        }
+        GameMessage message;
+        while ((message = relayClient.getNextMessage()) != null) {
+            if (message.getType() == GameMessage.MessageType.PING) {
+                relayClient.sendMessage(RttProbe.pongFor(message, isHost ? 1 : 2));
+            } else if (message.getType() == GameMessage.MessageType.PONG) {
+                relayProbe.onPong(message, System.nanoTime());
+            } else if (message.getType() == GameMessage.MessageType.JOIN_ROOM) {
+                onRoomJoined(message);
+            } else if (message.getType() == GameMessage.MessageType.REDIRECT) {
+                redirectTo((String) message.getData());
+                return;
+            }
+        }
     }
 
     private void sendPositionUpdate(Player player) {
@@ -475,20 +807,136 @@ public class Game {
             return;
         }
 
-        // 發送位置和狀態信息
-        double[] position = {
-            player.getX(),
-            player.getY(),
-            player.isAttacking() ? 1 : 0 // 添加攻擊狀態
-        };
+        // 發送位置和狀態信息，沒有變化時不發送
+        PositionSnapshot snapshot = snapshotEncoder.encode(
+                player.getX(),
+                player.getY(),
+                player.isAttacking(), // 添加攻擊狀態
+                snapshotDecoder.getLastReceivedSeq()
+        );
+        if (snapshot == null) {
+            return;
+        }
         GameMessage message = new GameMessage(
                 GameMessage.MessageType.PLAYER_POSITION,
-                position,
+                snapshot,
                 player == player1 ? 1 : 2
         );
         gameClient.sendMessage(message);
     }
 
+    // 本地玩家這一幀按住的鍵
+    private int localButtons() {
+        int buttons = 0;
+        if (pressedKeys.contains(isHost ? KeyCode.A : KeyCode.LEFT)) {
+            buttons |= MatchSimulation.LEFT;
+        }
+        if (pressedKeys.contains(isHost ? KeyCode.D : KeyCode.RIGHT)) {
+            buttons |= MatchSimulation.RIGHT;
+        }
+        if (pressedKeys.contains(isHost ? KeyCode.W : KeyCode.UP)) {
+            buttons |= MatchSimulation.JUMP;
+        }
+        if (pressedKeys.contains(isHost ? KeyCode.SPACE : KeyCode.ENTER)) {
+            buttons |= MatchSimulation.ATTACK;
+        }
+        return buttons;
+    }
+
+    // 每幀都送，沒按鍵也送，伺服器按幀號一幀一幀套用；同一幀先在本地預測
+    private void sendInput() {
+        int buttons = localButtons();
+        InputFrame frame = inputEncoder.encode(buttons);
+        prediction.apply(frame.getLastTick(), buttons);
+        showPrediction();
+        gameClient.sendMessage(new GameMessage(
+                GameMessage.MessageType.PLAYER_INPUT,
+                frame,
+                isHost ? 1 : 2
+        ));
+    }
+
+    private void showPrediction() {
+        Player local = prediction.getSeat() == 1 ? player1 : player2;
+        local.applyState(prediction.getState());
+        local.setX(prediction.getRenderX());
+        local.setY(prediction.getRenderY());
+    }
+
+    // 伺服器模擬的結果：對手的位置、動作和雙方分數都以它為準；自己的角色從它
+    // 重新推演還沒被確認的輸入
+    private void handleMatchSnapshot(GameMessage message) {
+        MatchSnapshot snapshot = (MatchSnapshot) message.getData();
+        int seat = isHost ? 1 : 2;
+        if (!authoritative) {
+            authoritative = true;
+            prediction = new ClientPrediction(seat, snapshot.getPlayer(seat));
+            System.out.println("伺服器負責模擬對局，改為只發送按鍵");
+        }
+        inputEncoder.acknowledge(snapshot.getLastInputTick(seat));
+        prediction.reconcile(snapshot.getPlayer(seat), snapshot.getLastInputTick(seat));
+        showPrediction();
+        (seat == 1 ? player2 : player1).applyState(snapshot.getPlayer(seat == 1 ? 2 : 1));
+        player1Hits = snapshot.getPlayer(1).getScore();
+        player2Hits = snapshot.getPlayer(2).getScore();
+    }
+
+    private void startRollback() {
+        if (rollback == null) {
+            rollback = new RollbackSession(isHost ? 1 : 2);
+            System.out.println("回滾模式：只交換按鍵，預測錯誤時最多回滾 "
+                    + RollbackSession.MAX_ROLLBACK_TICKS + " 幀");
+        }
+    }
+
+    // 回滾模式的一幀：先收下對手的按鍵（預測錯的幀在 advance 裡重算），再用本地按鍵推進一幀。
+    // 對手落後太多時這幀暫停，只重送還沒被確認的按鍵
+    private void advanceRollback() {
+        startRollback();
+        processNetworkMessages();
+        int buttons = localButtons() | (restartRequested ? MatchSimulation.RESTART : 0);
+        InputFrame frame;
+        if (rollback.advance(buttons)) {
+            restartRequested = false;
+            frame = inputEncoder.encode(buttons);
+        } else {
+            frame = inputEncoder.resend();
+        }
+        if (frame != null) {
+            gameClient.sendMessage(new GameMessage(
+                    GameMessage.MessageType.PLAYER_INPUT,
+                    frame,
+                    isHost ? 1 : 2
+            ));
+        }
+
+        MatchSimulation simulation = rollback.getSimulation();
+        player1.applyState(simulation.getPlayer(1));
+        player2.applyState(simulation.getPlayer(2));
+        player1Hits = simulation.getPlayer(1).getScore();
+        player2Hits = simulation.getPlayer(2).getScore();
+        // 對方按了重新開始，或者回滾推翻了剛才的最後一擊
+        if (!simulation.isOver() && gameOverText.isVisible()) {
+            gameOverText.setVisible(false);
+            restartButton.setVisible(false);
+        }
+    }
+
+    // 對手的按鍵，按幀號交給 RollbackSession；對手用回滾模式時這邊也跟著切換
+    private void handleRemoteInput(GameMessage message) {
+        if (authoritative || message.getPlayerId() == (isHost ? 1 : 2)) {
+            return;
+        }
+        startRollback();
+        InputFrame frame = (InputFrame) message.getData();
+        inputEncoder.acknowledge(frame.getAck());
+        for (int tick = frame.getOldestTick(); tick <= frame.getLastTick(); tick++) {
+            rollback.addRemoteInput(tick, frame.getButtons(tick));
+        }
+        rollback.onRemoteProgress(frame.getLastTick(), frame.getAck());
+        inputEncoder.setReceivedTick(rollback.getRemoteTick());
+    }
+
     private void sendAttackUpdate(Player player) {
         if (gameClient == null || !gameClient.isConnected()) {
             return;
@@ -505,16 +953,22 @@ public class Game {
     }
 
     private void handlePositionUpdate(GameMessage message) {
-        double[] position = (double[]) message.getData();
+        PositionSnapshot snapshot = (PositionSnapshot) message.getData();
         Player targetPlayer = message.getPlayerId() == 1 ? player1 : player2;
 
         if ((isHost && message.getPlayerId() == 2) || (!isHost && message.getPlayerId() == 1)) {
+            snapshotEncoder.acknowledge(snapshot.getAck());
+            double[] position = snapshotDecoder.decode(snapshot);
+            if (position == null) {
+                // 缺少基準快照，等待下一個關鍵幀
+                return;
+            }
             Platform.runLater(() -> {
                 targetPlayer.setX(position[0]);
                 targetPlayer.setY(position[1]);
 
                 // 如果有攻擊狀態信息，更新攻擊狀態
-                if (position.length > 2 && position[2] == 1) {
+                if (position[2] == 1) {
                     targetPlayer.attack();
                 }
             });
@@ -649,6 +1103,14 @@ public class Game {
     }
 
     private void restartGame() {
+        // 回滾模式下重新開始也是一個按鍵，雙方的模擬在同一幀重新開局
+        if (rollback != null) {
+            restartRequested = true;
+            gameOverText.setVisible(false);
+            restartButton.setVisible(false);
+            return;
+        }
+
         // 重置分數
         player1Hits = 0;
         player2Hits = 0;
@@ -679,6 +1141,7 @@ public class Game {
                     isHost ? 1 : 2
             );
             gameClient.sendMessage(resetMessage);
+            flushNetwork();
         }
     }
 
@@ -703,6 +1166,11 @@ public class Game {
                     + "-fx-font-weight: bold;"
             );
 
+            // 回滾模式下分數出自雙方各自的模擬，不必通知對方；遊戲循環也要繼續交換按鍵
+            if (rollback != null) {
+                return;
+            }
+
             // 發送遊戲結束消息
             GameMessage gameOverMessage = new GameMessage(
                     GameMessage.MessageType.GAME_STATE,
@@ -710,6 +1178,8 @@ public class Game {
                     isHost ? 1 : 2
             );
             gameClient.sendMessage(gameOverMessage);
+            // 遊戲循環即將停止，不會再有下一個 tick
+            flushNetwork();
 
             gameLoop.stop();
             System.out.println("遊戲結束！獲勝者：" + winner);
@@ -723,6 +1193,9 @@ public class Game {
         if (gameClient != null) {
             gameClient.disconnect();
         }
+        if (relayClient != null) {
+            relayClient.disconnect();
+        }
         if (reconnectExecutor != null) {
             reconnectExecutor.shutdown();
         }
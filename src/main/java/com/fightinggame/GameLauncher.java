@@ -3,6 +3,7 @@ package com.fightinggame;
 
 import java.net.InetAddress;
 
+import com.fightinggame.network.GameClient;
 import com.fightinggame.network.GameServer;
 
 import javafx.application.Application;
@@ -12,6 +13,7 @@ import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.HBox;
@@ -21,6 +23,7 @@ import javafx.stage.Stage;
 public class GameLauncher extends Application {
 
     private static final int DEFAULT_PORT = 5000;
+    private static final int DEFAULT_RATING = 1000;
 
     @Override
     public void start(Stage primaryStage) {
@@ -31,6 +34,7 @@ public class GameLauncher extends Application {
 
         Button hostButton = new Button("創建遊戲");
         Button joinButton = new Button("加入遊戲");
+        Button matchButton = new Button("快速配對");
 
         // 服務器設置
         HBox serverSettings = new HBox(10);
@@ -43,10 +47,30 @@ public class GameLauncher extends Application {
         portField.setPromptText("端口");
         portField.setPrefWidth(70);
 
-        serverSettings.getChildren().addAll(ipField, portField);
+        TextField roomField = new TextField(GameServer.DEFAULT_ROOM);
+        roomField.setPromptText("房間");
+        roomField.setPrefWidth(90);
+
+        serverSettings.getChildren().addAll(ipField, portField, roomField);
+
+        // 配對用的等級分，只在快速配對時使用
+        TextField ratingField = new TextField(String.valueOf(DEFAULT_RATING));
+        ratingField.setPromptText("等級分");
+        ratingField.setPrefWidth(70);
+        HBox matchSettings = new HBox(10, new Label("等級分"), ratingField, matchButton);
+        matchSettings.setAlignment(Pos.CENTER);
+
+        CheckBox udpCheckBox = new CheckBox("使用 UDP 傳輸");
+        // 對戰消息直接在兩個玩家之間傳送，不經過服務器轉發（雙方都要勾選）
+        CheckBox directCheckBox = new CheckBox("直連模式 (P2P)");
+        // 創建遊戲時使用：由服務器模擬對局和判定得分，玩家只發送按鍵（加入方自動跟隨）
+        CheckBox authoritativeCheckBox = new CheckBox("服務器權威模式");
+        // 雙方只交換按鍵，各自模擬並在預測錯時回滾重算（一方勾選，另一方收到按鍵後自動跟隨）
+        CheckBox rollbackCheckBox = new CheckBox("回滾模式 (GGPO)");
 
         hostButton.setOnAction(e -> {
-            startServer();
+            startServer(directCheckBox.isSelected(), authoritativeCheckBox.isSelected(),
+                    rollbackCheckBox.isSelected(), roomName(roomField));
             primaryStage.close();
         });
 
@@ -56,19 +80,36 @@ public class GameLauncher extends Application {
                 showError("請輸入伺服器IP地址");
                 return;
             }
+            Integer port = parsePort(portField);
+            if (port == null) {
+                return;
+            }
 
-            int port = DEFAULT_PORT;
+            startGame(false, ip, port, transport(udpCheckBox), directCheckBox.isSelected(),
+                    rollbackCheckBox.isSelected(), roomName(roomField));
+            primaryStage.close();
+        });
+
+        // 只需要服務器地址，對手和房間由服務器的大廳分配（不支援直連模式）
+        matchButton.setOnAction(e -> {
+            String ip = ipField.getText().trim();
+            if (ip.isEmpty()) {
+                showError("請輸入伺服器IP地址");
+                return;
+            }
+            Integer port = parsePort(portField);
+            if (port == null) {
+                return;
+            }
+            int rating;
             try {
-                String portText = portField.getText().trim();
-                if (!portText.isEmpty()) {
-                    port = Integer.parseInt(portText);
-                }
+                rating = Integer.parseInt(ratingField.getText().trim());
             } catch (NumberFormatException ex) {
-                showError("端口號格式不正確");
+                showError("等級分格式不正確");
                 return;
             }
 
-            startGame(false, ip, port);
+            startMatchmaking(ip, port, transport(udpCheckBox), rating);
             primaryStage.close();
         });
 
@@ -77,10 +118,15 @@ public class GameLauncher extends Application {
                 hostButton,
                 new Label("- 或 -"),
                 serverSettings,
-                joinButton
+                udpCheckBox,
+                directCheckBox,
+                authoritativeCheckBox,
+                rollbackCheckBox,
+                joinButton,
+                matchSettings
         );
 
-        Scene scene = new Scene(root, 400, 300);
+        Scene scene = new Scene(root, 400, 430);
         scene.getStylesheets().add(getClass().getResource("/styles.css").toExternalForm());
 
         primaryStage.setTitle("格鬥遊戲 - 啟動器");
@@ -88,6 +134,26 @@ public class GameLauncher extends Application {
         primaryStage.show();
     }
 
+    // 格式錯誤時顯示錯誤並返回 null
+    private Integer parsePort(TextField portField) {
+        try {
+            String portText = portField.getText().trim();
+            return portText.isEmpty() ? DEFAULT_PORT : Integer.parseInt(portText);
+        } catch (NumberFormatException ex) {
+            showError("端口號格式不正確");
+            return null;
+        }
+    }
+
+    private GameClient.TransportType transport(CheckBox udpCheckBox) {
+        return udpCheckBox.isSelected() ? GameClient.TransportType.UDP : GameClient.TransportType.TCP;
+    }
+
+    private String roomName(TextField roomField) {
+        String room = roomField.getText().trim();
+        return room.isEmpty() ? GameServer.DEFAULT_ROOM : room;
+    }
+
     private void showError(String message) {
         Alert alert = new Alert(Alert.AlertType.ERROR);
         alert.setTitle("錯誤");
@@ -96,9 +162,11 @@ public class GameLauncher extends Application {
         alert.showAndWait();
     }
 
-    private void startServer() {
+    private void startServer(boolean directMode, boolean authoritative, boolean rollback, String roomId) {
         try {
             GameServer server = new GameServer(DEFAULT_PORT);
+            server.setUdpEnabled(true);
+            server.setAuthoritative(authoritative);
             new Thread(() -> {
                 try {
                     server.start();
@@ -126,36 +194,43 @@ public class GameLauncher extends Application {
                 }
 
                 Label ipLabel = new Label("伺服器IP地址: " + localIP);
-                Label portLabel = new Label("伺服器端口: " + server.getPort());
+                Label portLabel = new Label("伺服器端口: " + server.getPort() + "  房間: " + roomId);
                 Label infoLabel = new Label("請告訴其他玩家以上信息，以便連接到您的遊戲");
+                Label directLabel = new Label(directMode
+                        ? "直連模式：對手會直接連到端口 " + (server.getPort() + 1)
+                        : "對戰消息經由服務器轉發");
 
                 Button okButton = new Button("確定");
                 okButton.setOnAction(e -> infoStage.close());
 
-                infoBox.getChildren().addAll(ipLabel, portLabel, infoLabel, okButton);
+                infoBox.getChildren().addAll(ipLabel, portLabel, infoLabel, directLabel, okButton);
 
-                Scene infoScene = new Scene(infoBox, 400, 200);
+                Scene infoScene = new Scene(infoBox, 400, 230);
                 infoStage.setScene(infoScene);
                 infoStage.setTitle("伺服器信息");
                 infoStage.show();
             });
 
             // Create game instance
-            Game game = new Game(true, "localhost", server.getPort());
+            Game game = new Game(true, server, directMode, roomId);
+            game.setRollbackMode(rollback);
             startGame(game);
         } catch (Exception e) {
             System.out.println("Error starting server: " + e.getMessage());
         }
     }
 
-    private void startGame(boolean isHost, String serverAddress, int serverPort) {
+    private void startGame(boolean isHost, String serverAddress, int serverPort,
+                           GameClient.TransportType transport, boolean directMode, boolean rollback,
+                           String roomId) {
         try {
             // If client, wait to ensure server is started
             if (!isHost) {
                 Thread.sleep(1000);
             }
 
-            Game game = new Game(isHost, serverAddress, serverPort);
+            Game game = new Game(isHost, serverAddress, serverPort, transport, directMode, roomId);
+            game.setRollbackMode(rollback);
             Stage gameStage = new Stage();
             gameStage.setTitle("格鬥遊戲 - " + (isHost ? "主機" : "客戶端"));
 
@@ -180,6 +255,25 @@ public class GameLauncher extends Application {
         }
     }
 
+    private void startMatchmaking(String serverAddress, int serverPort, GameClient.TransportType transport,
+                                  int rating) {
+        Game game = new Game(serverAddress, serverPort, transport, rating);
+        Stage gameStage = new Stage();
+        gameStage.setTitle("格鬥遊戲 - 快速配對");
+
+        Scene gameScene = new Scene(game.getRoot(), 800, 600);
+        gameScene.getStylesheets().add(getClass().getResource("/styles.css").toExternalForm());
+        game.setupInputHandling(gameScene);
+
+        gameStage.setScene(gameScene);
+        gameStage.show();
+        game.start();
+
+        gameStage.setOnCloseRequest(event -> {
+            game.stop();
+        });
+    }
+
     private void startGame(Game game) {
         Stage gameStage = new Stage();
         Scene gameScene = new Scene(game.getRoot(), 800, 600);
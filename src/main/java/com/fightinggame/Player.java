@@ -1,5 +1,7 @@
 package com.fightinggame;
 
+import com.fightinggame.simulation.PlayerState;
+
 import javafx.animation.Animation;
 import javafx.animation.AnimationTimer;
 import javafx.animation.KeyFrame;
@@ -45,6 +47,9 @@ public class Player {
     private Group visualGroup; // Contains sprite and attack box
     private AnimationTimer attackAnimationTimer;
     private int attackCooldown = 0;
+    // 權威模式下上一次套用的狀態，動畫只在狀態改變時觸發
+    private boolean stateAttacking;
+    private int stateHitsTaken;
 
     public Player(double x, double y, String name) {
         this.name = name;
@@ -312,60 +317,93 @@ public class Player {
         
     }
 
-    public void attack() {
+    // 冷卻中不會攻擊，回傳是否真的出手
+    public boolean attack() {
         if (attackCooldown <= 0) {
-            isAttacking = true;
-            attackBox.setVisible(true);
             attackCooldown = ATTACK_COOLDOWN;
+            showAttack();
+            return true;
+        }
+        return false;
+    }
+
+    private void showAttack() {
+        isAttacking = true;
+        attackBox.setVisible(true);
+
+        // 根據角色朝向調整攻擊框位置
+        if (sprite.getScaleX() < 0) {
+            attackBox.setX(-70);
+        } else {
+            attackBox.setX(30);
+        }
+        
+        attackBox.setY(0);
+        
+        // 播放攻擊動畫
+        Platform.runLater(() -> {
+            attackAnimation.stop();
+            attackAnimation.play();
             
-            // 根據角色朝向調整攻擊框位置
-            if (sprite.getScaleX() < 0) {
-                attackBox.setX(-70);
-            } else {
-                attackBox.setX(30);
-            }
-            
-            attackBox.setY(0);
+            // 添加攻擊特效
+            Timeline attackEffect = new Timeline(
+                new KeyFrame(Duration.millis(0), e -> {
+                    attackBox.setOpacity(1.0);
+                    attackBox.setScaleX(1.0);
+                    attackBox.setScaleY(1.0);
+                }),
+                new KeyFrame(Duration.millis(75), e -> {
+                    attackBox.setOpacity(0.8);
+                    attackBox.setScaleX(1.2);
+                    attackBox.setScaleY(1.2);
+                }),
+                new KeyFrame(Duration.millis(150), e -> {
+                    attackBox.setOpacity(0.0);
+                    attackBox.setScaleX(1.0);
+                    attackBox.setScaleY(1.0);
+                })
+            );
+            attackEffect.play();
             
-            // 播放攻擊動畫
-            Platform.runLater(() -> {
-                attackAnimation.stop();
-                attackAnimation.play();
-                
-                // 添加攻擊特效
-                Timeline attackEffect = new Timeline(
-                    new KeyFrame(Duration.millis(0), e -> {
-                        attackBox.setOpacity(1.0);
-                        attackBox.setScaleX(1.0);
-                        attackBox.setScaleY(1.0);
-                    }),
-                    new KeyFrame(Duration.millis(75), e -> {
-                        attackBox.setOpacity(0.8);
-                        attackBox.setScaleX(1.2);
-                        attackBox.setScaleY(1.2);
-                    }),
-                    new KeyFrame(Duration.millis(150), e -> {
-                        attackBox.setOpacity(0.0);
-                        attackBox.setScaleX(1.0);
-                        attackBox.setScaleY(1.0);
-                    })
-                );
-                attackEffect.play();
-                
-                // 設置一個計時器來重置攻擊狀態
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(150);
-                        Platform.runLater(() -> {
-                            isAttacking = false;
-                            attackBox.setVisible(false);
-                        });
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }).start();
-            });
+            // 設置一個計時器來重置攻擊狀態
+            new Thread(() -> {
+                try {
+                    Thread.sleep(150);
+                    Platform.runLater(() -> {
+                        isAttacking = false;
+                        attackBox.setVisible(false);
+                    });
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }).start();
+        });
+    }
+
+    // 權威模式：位置、朝向和動作都照模擬的狀態，出手和受傷動畫只在狀態變化時播放
+    public void applyState(PlayerState state) {
+        visualGroup.setLayoutX(state.getX());
+        visualGroup.setLayoutY(state.getY());
+        velocityY = state.getVelocityY();
+        onGround = state.isOnGround();
+        sprite.setScaleX(state.isFacingLeft() ? -1 : 1);
+        attackBox.setX(state.isFacingLeft() ? -70 : 30);
+        if (state.isMoving() && !isMoving) {
+            isMoving = true;
+            walkingAnimation.play();
+        } else if (!state.isMoving() && isMoving) {
+            isMoving = false;
+            walkingAnimation.stop();
+            resetLimbs();
+        }
+        if (state.isAttacking() && !stateAttacking) {
+            showAttack();
+        }
+        stateAttacking = state.isAttacking();
+        if (state.getHitsTaken() > stateHitsTaken) {
+            takeDamage(state.getHitsTaken() - stateHitsTaken);
         }
+        stateHitsTaken = state.getHitsTaken();
     }
 
     public void takeDamage(int damage) {
@@ -0,0 +1,25 @@
+// ClientConnection.java
+package com.fightinggame.network;
+
+import java.nio.ByteBuffer;
+
+interface ClientConnection {
+    // The frame may be shared with other recipients and must not be modified
+    void sendFrame(GameMessage.MessageType type, int playerId, ByteBuffer frame);
+
+    default void sendMessage(GameMessage message) {
+        sendFrame(message.getType(), message.getPlayerId(), MessageCodec.encodeFrame(message));
+    }
+
+    int getQueueDepth();
+
+    long getDroppedPositions();
+
+    // Null when the connection is trusted and not rate limited
+    MessageRateLimiter getRateLimiter();
+
+    // Null when the link cannot fail, i.e. the in-process loopback
+    Heartbeat getHeartbeat();
+
+    void stop();
+}
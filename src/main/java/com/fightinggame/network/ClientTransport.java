@@ -0,0 +1,18 @@
+// ClientTransport.java
+package com.fightinggame.network;
+
+import java.io.IOException;
+
+// The wire under GameClient. Received messages are handed to the Consumer given to
+// the implementation; the close callback runs once when the link goes down.
+interface ClientTransport {
+    void connect() throws IOException;
+
+    void send(GameMessage message) throws IOException;
+
+    void flush() throws IOException;
+
+    boolean isConnected();
+
+    void close();
+}
@@ -0,0 +1,43 @@
+// ConnectionThreads.java
+package com.fightinggame.network;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Creates connection threads, preferring virtual threads when the runtime has them.
+// The lookup is reflective so the sources still compile for the Java 17 target.
+final class ConnectionThreads {
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private ConnectionThreads() {
+    }
+
+    static boolean virtualThreadsAvailable() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    static Thread newThread(String name, Runnable task, boolean preferVirtual) {
+        Thread thread;
+        if (preferVirtual && VIRTUAL_FACTORY != null) {
+            thread = VIRTUAL_FACTORY.newThread(task);
+        } else {
+            thread = new Thread(task);
+            thread.setDaemon(true);
+        }
+        thread.setName(name + "-" + THREAD_COUNT.incrementAndGet());
+        return thread;
+    }
+
+    private static ThreadFactory lookupVirtualFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+// DatagramSession.java
+package com.fightinggame.network;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One end of a UDP link. PLAYER_POSITION goes on the state channel: unreliable,
+// only the newest frame per player is sent and older arrivals are discarded.
+// Everything else goes on the event channel, which is made reliable and ordered
+// with sequence numbers, cumulative acks and retransmits.
+//
+// Datagram layout: kind byte, then for DATA a varint ack (next event sequence
+// expected from the peer) followed by entries of
+// [channel byte][varint sequence][length-prefixed frame].
+class DatagramSession {
+    static final byte KIND_HELLO = 1;
+    static final byte KIND_DATA = 2;
+    static final byte KIND_BYE = 3;
+    static final int MAX_DATAGRAM = 1200;
+
+    private static final byte CHANNEL_STATE = 0;
+    private static final byte CHANNEL_EVENT = 1;
+    private static final long RETRANSMIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long ACK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(30);
+    private static final int MAX_UNACKED = 512;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder droppedTotal;
+    private final ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM);
+
+    // Sending side
+    private final Map<Integer, ByteBuffer> pendingState = new LinkedHashMap<>();
+    private final ArrayDeque<PendingEvent> unacked = new ArrayDeque<>();
+    private int nextStateSeq = 1;
+    private int nextEventSeq = 0;
+    private long lastSendNanos;
+    private long droppedPositions;
+    private long retransmits;
+
+    // Receiving side
+    private final TreeMap<Integer, ByteBuffer> outOfOrder = new TreeMap<>();
+    private final Map<Integer, Integer> lastStateSeq = new HashMap<>();
+    private int nextExpectedEvent = 0;
+    private boolean ackPending;
+    private volatile long lastReceiveNanos = System.nanoTime();
+
+    interface FrameHandler {
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    private static class PendingEvent {
+        final int seq;
+        final ByteBuffer frame;
+        long lastSentNanos;
+
+        PendingEvent(int seq, ByteBuffer frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    DatagramSession(LongAdder droppedTotal) {
+        this.droppedTotal = droppedTotal;
+    }
+
+    // Returns false when too many events are unacknowledged; the peer is not keeping up
+    boolean offer(GameMessage.MessageType type, int playerId, ByteBuffer frame) {
+        if (frame.remaining() > MAX_DATAGRAM - 16) {
+            throw new IllegalArgumentException("Frame too large for a datagram: " + frame.remaining());
+        }
+        lock.lock();
+        try {
+            if (type == GameMessage.MessageType.PLAYER_POSITION) {
+                if (pendingState.put(playerId, frame) != null) {
+                    droppedPositions++;
+                    droppedTotal.increment();
+                }
+                return true;
+            }
+            if (unacked.size() >= MAX_UNACKED) {
+                return false;
+            }
+            unacked.add(new PendingEvent(nextEventSeq++, frame));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sends queued state, new events, due retransmits and any pending ack
+    void flush(DatagramChannel channel, SocketAddress target, long now) throws IOException {
+        lock.lock();
+        try {
+            beginDatagram();
+            int entries = 0;
+            for (ByteBuffer frame : pendingState.values()) {
+                entries = append(channel, target, CHANNEL_STATE, nextStateSeq++, frame, entries);
+            }
+            pendingState.clear();
+            entries = appendEvents(channel, target, now, true, entries);
+            if (entries > 0 || ackPending) {
+                send(channel, target, now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called from the receive side between application flushes: only retransmits
+    // events that were already sent, and sends an ack if nothing went out recently
+    void flushReliable(DatagramChannel channel, SocketAddress target, long now) throws IOException {
+        lock.lock();
+        try {
+            beginDatagram();
+            int entries = appendEvents(channel, target, now, false, 0);
+            if (entries > 0 || (ackPending && now - lastSendNanos >= ACK_DELAY_NANOS)) {
+                send(channel, target, now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The kind byte has already been consumed. Frames are delivered undecoded,
+    // each in its own buffer with the length prefix included. The bytes come straight
+    // off the socket, so a datagram too short for what it claims is a ProtocolException.
+    void receive(ByteBuffer packet, FrameHandler deliver, long now) throws IOException {
+        if (!packet.hasRemaining()) {
+            throw new ProtocolException("Empty data datagram");
+        }
+        List<ByteBuffer> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            lastReceiveNanos = now;
+            int ack = MessageCodec.getVarInt(packet);
+            while (!unacked.isEmpty() && unacked.peek().seq < ack) {
+                unacked.poll();
+            }
+            while (packet.hasRemaining()) {
+                byte channel = packet.get();
+                int seq = MessageCodec.getVarInt(packet);
+                int start = packet.position();
+                int length = MessageCodec.readFrameLength(packet);
+                if (length < 0 || packet.remaining() < length) {
+                    throw new ProtocolException("Truncated datagram entry");
+                }
+                int end = packet.position() + length;
+                int limit = packet.limit();
+                ByteBuffer frame = ByteBuffer.allocate(end - start);
+                packet.position(start);
+                packet.limit(end);
+                frame.put(packet).flip();
+                packet.limit(limit);
+                packet.position(end);
+
+                if (channel == CHANNEL_STATE) {
+                    int playerId = MessageCodec.peekPlayerId(frame);
+                    Integer last = lastStateSeq.get(playerId);
+                    if (last == null || seq > last) {
+                        lastStateSeq.put(playerId, seq);
+                        ready.add(frame);
+                    }
+                } else {
+                    ackPending = true;
+                    if (seq == nextExpectedEvent) {
+                        ready.add(frame);
+                        nextExpectedEvent++;
+                        ByteBuffer buffered;
+                        while ((buffered = outOfOrder.remove(nextExpectedEvent)) != null) {
+                            ready.add(buffered);
+                            nextExpectedEvent++;
+                        }
+                    } else if (seq > nextExpectedEvent && outOfOrder.size() < MAX_UNACKED) {
+                        outOfOrder.putIfAbsent(seq, frame);
+                    }
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated datagram");
+        } finally {
+            lock.unlock();
+        }
+        for (ByteBuffer frame : ready) {
+            deliver.onFrame(frame);
+        }
+    }
+
+    long getLastReceiveNanos() {
+        return lastReceiveNanos;
+    }
+
+    int pendingCount() {
+        lock.lock();
+        try {
+            return pendingState.size() + unacked.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDroppedPositions() {
+        lock.lock();
+        try {
+            return droppedPositions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getRetransmits() {
+        lock.lock();
+        try {
+            return retransmits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static void sendControl(DatagramChannel channel, SocketAddress target, byte kind) throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(1);
+        packet.put(kind).flip();
+        write(channel, target, packet);
+    }
+
+    private int appendEvents(DatagramChannel channel, SocketAddress target, long now,
+                             boolean includeNew, int entries) throws IOException {
+        for (PendingEvent event : unacked) {
+            boolean isNew = event.lastSentNanos == 0;
+            if ((isNew && !includeNew) || (!isNew && now - event.lastSentNanos < RETRANSMIT_NANOS)) {
+                continue;
+            }
+            if (!isNew) {
+                retransmits++;
+            }
+            entries = append(channel, target, CHANNEL_EVENT, event.seq, event.frame, entries);
+            event.lastSentNanos = now;
+        }
+        return entries;
+    }
+
+    private int append(DatagramChannel channel, SocketAddress target, byte kind, int seq,
+                       ByteBuffer frame, int entries) throws IOException {
+        int size = 1 + MessageCodec.varIntSize(seq) + frame.remaining();
+        if (datagram.remaining() < size) {
+            send(channel, target, System.nanoTime());
+            beginDatagram();
+            entries = 0;
+        }
+        datagram.put(kind);
+        MessageCodec.putVarInt(datagram, seq);
+        datagram.put(frame.duplicate());
+        return entries + 1;
+    }
+
+    private void beginDatagram() {
+        datagram.clear();
+        datagram.put(KIND_DATA);
+        MessageCodec.putVarInt(datagram, nextExpectedEvent);
+    }
+
+    private void send(DatagramChannel channel, SocketAddress target, long now) throws IOException {
+        datagram.flip();
+        write(channel, target, datagram);
+        ackPending = false;
+        lastSendNanos = now;
+    }
+
+    private static void write(DatagramChannel channel, SocketAddress target, ByteBuffer packet) throws IOException {
+        if (target == null) {
+            channel.write(packet);
+        } else {
+            channel.send(packet, target);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+// DirectHostTransport.java
+package com.fightinggame.network;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.function.Consumer;
+
+// Host side of direct mode. The host's game listens for the joining player itself,
+// so every message takes one hop instead of going client -> GameServer -> client.
+// Only one peer is accepted at a time; a new one may connect after it leaves.
+class DirectHostTransport implements ClientTransport {
+    private final int port;
+    private final Consumer<GameMessage> inbox;
+    private final Runnable onClosed;
+    private ServerSocket serverSocket;
+    private volatile TcpTransport peer;
+    private volatile boolean listening;
+
+    DirectHostTransport(int port, Consumer<GameMessage> inbox, Runnable onClosed) {
+        this.port = port;
+        this.inbox = inbox;
+        this.onClosed = onClosed;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        serverSocket = new ServerSocket(port);
+        // The opponent talks only to us, so our clock is the match clock
+        MatchClock.becomeReference();
+        listening = true;
+        System.out.println("等待對手直連，端口: " + port);
+        ConnectionThreads.newThread("game-direct-accept", this::acceptLoop, false).start();
+    }
+
+    private void acceptLoop() {
+        while (listening) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (peer != null && peer.isConnected()) {
+                    System.out.println("已有對手直連，拒絕: " + socket.getInetAddress());
+                    socket.close();
+                    continue;
+                }
+                TcpTransport transport = new TcpTransport(socket, inbox, () -> System.out.println("對手已斷開直連"));
+                transport.connect();
+                peer = transport;
+                System.out.println("對手已直連: " + socket.getInetAddress());
+            } catch (IOException e) {
+                if (listening) {
+                    System.out.println("Error accepting direct connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Until the peer arrives there is nobody to deliver to, same as a relay with one client
+    @Override
+    public void send(GameMessage message) {
+        TcpTransport current = peer;
+        if (current == null || !current.isConnected()) {
+            return;
+        }
+        try {
+            current.send(message);
+        } catch (IOException e) {
+            System.out.println("Error sending to peer: " + e.getMessage());
+            current.close();
+        }
+    }
+
+    @Override
+    public void flush() {
+        TcpTransport current = peer;
+        if (current == null || !current.isConnected()) {
+            return;
+        }
+        try {
+            current.flush();
+        } catch (IOException e) {
+            System.out.println("Error sending to peer: " + e.getMessage());
+            current.close();
+        }
+    }
+
+    // Stays "connected" while listening so the host can play as soon as the peer joins
+    @Override
+    public boolean isConnected() {
+        return listening;
+    }
+
+    @Override
+    public void close() {
+        if (!listening) {
+            return;
+        }
+        listening = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            System.out.println("Error during disconnect: " + e.getMessage());
+        }
+        TcpTransport current = peer;
+        if (current != null) {
+            current.close();
+        }
+        onClosed.run();
+    }
+}
@@ -1,92 +1,246 @@
 // GameClient.java
 package com.fightinggame.network;
 
-import java.io.EOFException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.ProtocolException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class GameClient {
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    public enum TransportType {
+        TCP,    // 所有消息走同一條可靠的 TCP 連線
+        UDP,    // 位置走不可靠通道，事件走可靠有序通道
+        LOOPBACK, // 主機和同一個進程內的服務器直接交換消息
+        DIRECT_HOST // 主機自己監聽，對手直接連過來，不經過服務器轉發
+    }
+
+    private static final double LAN_RTT_MILLIS = 30;
+    private static final double LAN_JITTER_MILLIS = 10;
+    private static final double SLOW_RTT_MILLIS = 150;
+    private static final double SLOW_JITTER_MILLIS = 40;
+
     private String serverAddress;
     private int serverPort;
-    private boolean connected;
-    private BlockingQueue<GameMessage> messageQueue;
-    private Thread receiveThread;
+    private final TransportType transportType;
+    private final GameServer localServer;
+    private ClientTransport transport;
+    private Queue<GameMessage> messageQueue;
+    private volatile Heartbeat heartbeat = new Heartbeat(System.nanoTime());
+    private final LatencyStats latency = new LatencyStats();
 
     public GameClient(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, TransportType.TCP);
+    }
+
+    public GameClient(String serverAddress, int serverPort, TransportType transportType) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
-        this.messageQueue = new LinkedBlockingQueue<>();
+        this.transportType = transportType;
+        this.localServer = null;
+        this.messageQueue = new ConcurrentLinkedQueue<>();
+        connect();
+    }
+
+    // For the host: talk to the server in this JVM without going through a socket
+    public GameClient(GameServer localServer) {
+        this.serverAddress = "localhost";
+        this.serverPort = localServer.getPort();
+        this.transportType = TransportType.LOOPBACK;
+        this.localServer = localServer;
+        this.messageQueue = new ConcurrentLinkedQueue<>();
         connect();
     }
 
     public void connect() {
         try {
-            System.out.println("嘗試連接到服務器：" + serverAddress + ":" + serverPort);
-            socket = new Socket(serverAddress, serverPort);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            connected = true;
+            System.out.println("嘗試連接到服務器：" + serverAddress + ":" + serverPort + " (" + transportType + ")");
+            heartbeat = new Heartbeat(System.nanoTime());
+            transport = createTransport();
+            transport.connect();
             System.out.println("成功連接到服務器！");
-    
-            // Start message receiving thread
-            receiveThread = new Thread(() -> {
-                try {
-                    while (connected) {
-                        GameMessage message = (GameMessage) in.readObject();
-                        messageQueue.offer(message);
-                    }
-                } catch (EOFException e) {
-                    System.out.println("服務器關閉了連接");
-                } catch (Exception e) {
-                    System.out.println("接收消息時出錯: " + e.getMessage());
-                } finally {
-                    disconnect();
-                }
-            });
-            receiveThread.setDaemon(true);
-            receiveThread.start();
-    
         } catch (Exception e) {
             System.out.println("連接錯誤: " + e.getMessage());
-            connected = false;
+            transport.close();
         }
     }
 
+    private ClientTransport createTransport() {
+        if (transportType == TransportType.LOOPBACK) {
+            return new LoopbackTransport(localServer, this::onMessage, this::onTransportClosed);
+        }
+        if (transportType == TransportType.DIRECT_HOST) {
+            return new DirectHostTransport(serverPort, this::onMessage, this::onTransportClosed);
+        }
+        if (transportType == TransportType.UDP) {
+            return new UdpTransport(serverAddress, serverPort, this::onMessage, this::onTransportClosed);
+        }
+        return new TcpTransport(serverAddress, serverPort, this::onMessage, this::onTransportClosed);
+    }
+
+    // A RESYNC carries the room state and the missed events as whole frames, and so do
+    // SPECTATOR_FRAME and CATCH_UP. They are unpacked here, so the game sees them as
+    // ordinary messages right after the RESYNC, SPECTATOR_FRAME or CATCH_UP.
+    private void onMessage(GameMessage message) {
+        long now = System.nanoTime();
+        heartbeat.onReceive(now);
+        latency.record(message.getType(), MatchClock.nowMillis() - message.getTimestamp());
+        if (message.getType() == GameMessage.MessageType.HEARTBEAT) {
+            // Answered right away from the receiving thread, so the other side's
+            // RTT does not include our frame time
+            try {
+                transport.send(Heartbeat.ackFor(message));
+                transport.flush();
+            } catch (Exception e) {
+                System.out.println("Error sending message: " + e.getMessage());
+            }
+            return;
+        }
+        if (message.getType() == GameMessage.MessageType.HEARTBEAT_ACK) {
+            heartbeat.onAck(message, now);
+            // Loopback and direct hosts are in the reference process already
+            if (transportType == TransportType.TCP || transportType == TransportType.UDP) {
+                MatchClock.onSample(Heartbeat.sentNanos(message), now, Heartbeat.responderMicros(message));
+            }
+            return;
+        }
+        if (message.getType() != GameMessage.MessageType.RESYNC
+                && message.getType() != GameMessage.MessageType.SPECTATOR_FRAME
+                && message.getType() != GameMessage.MessageType.CATCH_UP) {
+            messageQueue.offer(message);
+            return;
+        }
+        RoomSnapshot snapshot = (RoomSnapshot) message.getData();
+        messageQueue.offer(new GameMessage(message.getType(),
+                snapshot.getEntries().size(), message.getPlayerId(), message.getTimestamp()));
+        for (RoomSnapshot.Entry entry : snapshot.getEntries()) {
+            try {
+                messageQueue.offer(MessageCodec.decodeFrame(entry.frame));
+            } catch (ProtocolException e) {
+                System.out.println("Bad frame in " + message.getType() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void onTransportClosed() {
+        System.out.println("與服務器的連接已關閉");
+    }
+
+    // Messages are buffered until flush(), so everything sent during one tick leaves together
     public void sendMessage(GameMessage message) {
-        if (!connected) {
+        if (!isConnected()) {
             return;
         }
         try {
-            out.writeObject(message);
-            out.flush();
+            transport.send(message);
         } catch (Exception e) {
             System.out.println("Error sending message: " + e.getMessage());
             disconnect();
         }
     }
 
+    // Puts this client in a room on the server; only players in the same room see its messages
+    public void joinRoom(String roomId) {
+        joinRoom(roomId, 0);
+    }
+
+    // The player id tells the server whose frames are whose when a room is migrated
+    public void joinRoom(String roomId, int playerId) {
+        sendMessage(new GameMessage(GameMessage.MessageType.JOIN_ROOM, roomId, playerId));
+        flush();
+    }
+
+    // Reconnects to the room of an earlier session; the answer is a RESYNC message.
+    // The room id lets a gateway send it to the backend that holds the seat.
+    public void resumeSession(String roomId, long token, int playerId) {
+        sendMessage(new GameMessage(GameMessage.MessageType.RESUME, new ResumeRequest(roomId, token), playerId));
+        flush();
+    }
+
+    // Watches a room instead of playing in it; the server echoes the SPECTATE and then
+    // sends SPECTATOR_FRAMEs
+    public void spectate(String roomId) {
+        sendMessage(new GameMessage(GameMessage.MessageType.SPECTATE, roomId, 0));
+        flush();
+    }
+
+    // Asks the server's lobby for an opponent; the answer is a MATCH_FOUND message
+    public void queueMatch(int rating) {
+        sendMessage(new GameMessage(GameMessage.MessageType.QUEUE_MATCH, rating, 0));
+        flush();
+    }
+
+    // Also sends the heartbeat when it is due, and drops a link that went silent so the
+    // game notices within Heartbeat.DEAD_AFTER_NANOS instead of waiting for a failed read.
+    // A direct host has no link until the peer arrives and is left alone.
+    public void flush() {
+        if (!isConnected()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (transportType != TransportType.DIRECT_HOST && heartbeat.isDead(now)) {
+            System.out.println("服務器 " + heartbeat.silentMillis(now) + " ms 沒有回應，斷開連接");
+            disconnect();
+            return;
+        }
+        try {
+            GameMessage beat = heartbeat.next(now);
+            if (beat != null) {
+                transport.send(beat);
+            }
+            transport.flush();
+        } catch (Exception e) {
+            System.out.println("Error sending message: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    public boolean hasRttSample() {
+        return heartbeat.getProbe().hasSample();
+    }
+
+    // Smoothed round trip to whatever this client is connected to, from heartbeats
+    public double getRttMillis() {
+        return heartbeat.getProbe().getRttMillis();
+    }
+
+    public double getJitterMillis() {
+        return heartbeat.getProbe().getJitterMillis();
+    }
+
+    // Ticks between position updates for the measured link: every tick on a LAN,
+    // every other tick on a typical internet path, every third on a slow or jittery
+    // one. Fewer frames keep a slow link from queueing updates that are already stale.
+    public int getPositionSendInterval() {
+        RttProbe probe = heartbeat.getProbe();
+        if (!probe.hasSample()) {
+            return 1;
+        }
+        double rtt = probe.getRttMillis();
+        double jitter = probe.getJitterMillis();
+        if (rtt < LAN_RTT_MILLIS && jitter < LAN_JITTER_MILLIS) {
+            return 1;
+        }
+        if (rtt < SLOW_RTT_MILLIS && jitter < SLOW_JITTER_MILLIS) {
+            return 2;
+        }
+        return 3;
+    }
+
+    // One-way latency per message type, from whoever sent it to this client
+    public LatencyStats getLatencyStats() {
+        return latency;
+    }
+
     public GameMessage getNextMessage() {
         return messageQueue.poll();
     }
 
     public boolean isConnected() {
-        return connected && socket != null && !socket.isClosed();
+        return transport != null && transport.isConnected();
     }
 
     public void disconnect() {
-        connected = false;
-        try {
-            if (out != null) out.close();
-            if (in != null) in.close();
-            if (socket != null) socket.close();
-        } catch (Exception e) {
-            System.out.println("Error during disconnect: " + e.getMessage());
+        if (transport != null) {
+            transport.close();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,329 @@
+// GameGateway.java
+package com.fightinggame.network;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Front door for a cluster of GameServer processes. Clients connect here and their
+// first frame (JOIN_ROOM, SPECTATE or RESUME) picks a backend by consistent hashing on
+// the room id. After that the gateway only moves bytes: each direction has one direct buffer,
+// frames are never decoded, so a byte is copied once into the buffer and once out.
+//
+// Rooms with connected players stay on the backend they started on, even if backends
+// are added or removed meanwhile; only new rooms follow the updated ring.
+public class GameGateway {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final HashRing ring = new HashRing();
+    // Touched only by the selector thread
+    private final Map<String, RoomRoute> routes = new HashMap<>();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private volatile boolean running;
+    private volatile int sessionCount;
+
+    private static class RoomRoute {
+        final InetSocketAddress backend;
+        int sessions;
+
+        RoomRoute(InetSocketAddress backend) {
+            this.backend = backend;
+        }
+    }
+
+    public GameGateway(int port) {
+        this.port = port;
+    }
+
+    public void addBackend(String host, int backendPort) {
+        InetSocketAddress backend = new InetSocketAddress(host, backendPort);
+        ring.add(backend);
+        System.out.println("Backend added: " + backend);
+    }
+
+    // Running matches on the backend are left alone; it just gets no new rooms
+    public void removeBackend(String host, int backendPort) {
+        InetSocketAddress backend = new InetSocketAddress(host, backendPort);
+        ring.remove(backend);
+        System.out.println("Backend removed: " + backend);
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        Thread thread = new Thread(this::run, "game-gateway");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Gateway started on port: " + port);
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (selector != null) selector.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.out.println("Error stopping gateway: " + e.getMessage());
+        }
+    }
+
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    try {
+                        session.onReady(key);
+                    } catch (IOException e) {
+                        session.close();
+                    } catch (RuntimeException e) {
+                        // One malformed client ends its own session, not the gateway
+                        System.out.println("Closing gateway session after unexpected error: " + e);
+                        session.close();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // gateway stopped
+        } catch (IOException e) {
+            System.out.println("Gateway loop error: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Session session = new Session(channel);
+            session.clientKey = channel.register(selector, SelectionKey.OP_READ, session);
+            sessionCount++;
+        }
+    }
+
+    private InetSocketAddress acquireRoute(String roomId) {
+        RoomRoute route = routes.get(roomId);
+        if (route == null) {
+            InetSocketAddress backend = ring.lookup(roomId);
+            if (backend == null) {
+                return null;
+            }
+            route = new RoomRoute(backend);
+            routes.put(roomId, route);
+            System.out.println("Room " + roomId + " -> " + backend);
+        }
+        route.sessions++;
+        return route.backend;
+    }
+
+    private void releaseRoute(String roomId) {
+        RoomRoute route = routes.get(roomId);
+        if (route != null && --route.sessions == 0) {
+            routes.remove(roomId);
+        }
+    }
+
+    // The room a client's first frame is about; anything else, e.g. QUEUE_MATCH, goes
+    // to the backend of the default room
+    static String roomOf(ByteBuffer frame) throws ProtocolException {
+        switch (MessageCodec.peekType(frame)) {
+            case JOIN_ROOM:
+            case SPECTATE:
+                return (String) MessageCodec.decodeFrame(frame).getData();
+            case RESUME:
+                return ((ResumeRequest) MessageCodec.decodeFrame(frame).getData()).getRoomId();
+            default:
+                return GameServer.DEFAULT_ROOM;
+        }
+    }
+
+    private class Session {
+        private final SocketChannel client;
+        private SocketChannel backend;
+        private SelectionKey clientKey;
+        private SelectionKey backendKey;
+        // Both buffers are kept in fill mode: position is the end of pending data
+        private final ByteBuffer upstream = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer downstream = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private String roomId;
+        private boolean connected;
+        private boolean closed;
+
+        Session(SocketChannel client) {
+            this.client = client;
+        }
+
+        void onReady(SelectionKey key) throws IOException {
+            if (key == backendKey && key.isConnectable()) {
+                backend.finishConnect();
+                connected = true;
+            }
+            if (key.isValid() && key.isReadable()) {
+                if (key == clientKey) {
+                    if (client.read(upstream) < 0) {
+                        close();
+                        return;
+                    }
+                    if (backend == null) {
+                        route();
+                    }
+                } else if (backend.read(downstream) < 0) {
+                    close();
+                    return;
+                }
+            }
+            // Try to pass data on right away; OP_WRITE is only used when a socket is full
+            if (connected) {
+                drain(upstream, backend);
+                drain(downstream, client);
+            }
+            updateInterest();
+        }
+
+        // Waits for the first complete frame, then connects to the room's backend.
+        // The frame itself stays in the buffer and is forwarded like everything else.
+        private void route() throws IOException {
+            ByteBuffer first = upstream.duplicate();
+            first.flip();
+            int start = first.position();
+            int length = MessageCodec.readFrameLength(first);
+            if (length < 0 || first.remaining() < length) {
+                return;
+            }
+            // Peek only inside the frame; the client's bytes are unvalidated
+            first.limit(first.position() + length);
+            first.position(start);
+            roomId = roomOf(first);
+            InetSocketAddress target = acquireRoute(roomId);
+            if (target == null) {
+                System.out.println("No backend available for room " + roomId);
+                roomId = null;
+                close();
+                return;
+            }
+            backend = SocketChannel.open();
+            backend.configureBlocking(false);
+            backend.socket().setTcpNoDelay(true);
+            connected = backend.connect(target);
+            backendKey = backend.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+        }
+
+        private void drain(ByteBuffer buffer, SocketChannel to) throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            to.write(buffer);
+            buffer.compact();
+        }
+
+        // Stop reading a side while the buffer towards the other side is full,
+        // so a slow reader pushes back on the sender instead of growing memory
+        private void updateInterest() {
+            if (closed) {
+                return;
+            }
+            int clientOps = 0;
+            if (upstream.hasRemaining()) {
+                clientOps |= SelectionKey.OP_READ;
+            }
+            if (downstream.position() > 0) {
+                clientOps |= SelectionKey.OP_WRITE;
+            }
+            clientKey.interestOps(clientOps);
+            if (backendKey != null && connected) {
+                int backendOps = 0;
+                if (downstream.hasRemaining()) {
+                    backendOps |= SelectionKey.OP_READ;
+                }
+                if (upstream.position() > 0) {
+                    backendOps |= SelectionKey.OP_WRITE;
+                }
+                backendKey.interestOps(backendOps);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sessionCount--;
+            if (roomId != null) {
+                releaseRoute(roomId);
+            }
+            try {
+                client.close();
+                if (backend != null) backend.close();
+            } catch (IOException e) {
+                System.out.println("Error closing gateway session: " + e.getMessage());
+            }
+        }
+    }
+
+    // Usage: GameGateway <port> [host:port ...]
+    // While running, reads "add host:port", "remove host:port" and "list" from stdin
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        GameGateway gateway = new GameGateway(port);
+        for (int i = 1; i < args.length; i++) {
+            String[] hostPort = args[i].split(":");
+            gateway.addBackend(hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+        gateway.start();
+
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = console.readLine()) != null) {
+            String[] parts = line.trim().split("\\s+");
+            try {
+                if (parts[0].equals("list")) {
+                    System.out.println("Backends: " + gateway.ring.backends() + ", sessions: " + gateway.sessionCount);
+                } else if (parts.length == 2 && (parts[0].equals("add") || parts[0].equals("remove"))) {
+                    String[] hostPort = parts[1].split(":");
+                    if (parts[0].equals("add")) {
+                        gateway.addBackend(hostPort[0], Integer.parseInt(hostPort[1]));
+                    } else {
+                        gateway.removeBackend(hostPort[0], Integer.parseInt(hostPort[1]));
+                    }
+                } else if (!parts[0].isEmpty()) {
+                    System.out.println("Commands: add host:port, remove host:port, list");
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Invalid command: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -11,19 +11,41 @@ public class GameMessage implements Serializable {
         PLAYER_ATTACK,      // 玩家攻擊
         PLAYER_DAMAGE,      // 玩家受傷
         GAME_STATE,         // 遊戲狀態（分數等）
-        PLAYER_ANIMATION    // 玩家動畫狀態
+        PLAYER_ANIMATION,   // 玩家動畫狀態
+        PING,               // 延遲探測（帶發送時間）
+        PONG,               // 延遲探測回覆（原樣帶回發送時間）
+        JOIN_ROOM,          // 加入房間（客戶端發出，玩家ID為座位），服務器原樣回覆表示已加入
+        ROOM_TRANSFER,      // 服務器之間遷移房間時傳送的房間快照
+        REDIRECT,           // 房間已遷移，請連接到新的服務器（host:port）
+        QUEUE_MATCH,        // 排隊配對（帶等級分）
+        MATCH_FOUND,        // 配對成功（帶房間名稱，玩家ID為分到的座位）
+        SESSION,            // 加入房間後服務器發給客戶端的會話令牌，斷線後用來恢復
+        RESUME,             // 重新連線時出示會話令牌（帶房間名稱，閘道據此選後端）
+        RESYNC,             // 恢復結果：房間目前狀態和斷線期間錯過的事件，玩家ID為 1 表示成功
+        HEARTBEAT,          // 連線心跳（帶發送時間），只在連線的兩端之間，不轉發
+        HEARTBEAT_ACK,      // 心跳回覆（原樣帶回發送時間）
+        SPECTATE,           // 以觀眾身份進入房間（帶房間名稱），服務器原樣回覆表示已加入
+        SPECTATOR_FRAME,    // 給觀眾的房間畫面：分數、雙方位置和上一幀以來的事件
+        CATCH_UP,           // 中途加入時的追趕資料：房間最近的關鍵幀和之後的變化，之後才是即時消息
+        PLAYER_INPUT,       // 玩家每幀的按鍵（帶還沒被確認的前幾幀），權威模式下客戶端只發這個
+        MATCH_SNAPSHOT      // 權威模式：伺服器模擬後的對局狀態，和各座位已套用到第幾幀輸入
     }
 
     private MessageType type;
     private Object data;
     private int playerId;
-    private long timestamp;  // 添加時間戳
+    private long timestamp;  // 發送時的對局時鐘（毫秒，見 MatchClock），兩端可以直接比較
 
     public GameMessage(MessageType type, Object data, int playerId) {
+        this(type, data, playerId, MatchClock.nowMillis());
+    }
+
+    // 解碼時使用，保留發送方的時間戳
+    GameMessage(MessageType type, Object data, int playerId, long timestamp) {
         this.type = type;
         this.data = data;
         this.playerId = playerId;
-        this.timestamp = System.currentTimeMillis();
+        this.timestamp = timestamp;
     }
 
     public MessageType getType() {
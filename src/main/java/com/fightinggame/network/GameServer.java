@@ -1,27 +1,135 @@
 // GameServer.java
 package com.fightinggame.network;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 public class GameServer {
     private static final int MIN_PORT = 5000;
     private static final int MAX_PORT = 5100;
+    private static final int IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int ROOM_WORKERS = Runtime.getRuntime().availableProcessors();
+    private static final int CLIENT_IDLE_TIMEOUT_MS = 15000;
+    private static final int MIGRATION_TIMEOUT_MS = 2000;
+    // Migrations arrive on their own listener at the game port plus this offset, clear of
+    // backends on neighbouring ports. Never on the public game port, and only from
+    // loopback or hosts added with allowMigrationFrom.
+    public static final int MIGRATION_PORT_OFFSET = 1000;
+    // An imported room nobody returns to is dropped after this long
+    private static final int MIGRATION_ABANDON_MS = 10000;
+    // Room snapshots are streamed in ROOM_TRANSFER frames of this size, so a busy room
+    // is not limited to one MessageCodec.MAX_FRAME_SIZE frame
+    private static final int MIGRATION_CHUNK_BYTES = 8 * 1024;
+    // Bounds what one migration may make the target buffer
+    private static final int MIGRATION_MAX_CHUNKS = 1024;
+    // How long a dropped player's seat and missed events are kept for a resume
+    private static final int SESSION_GRACE_MS = 30000;
+    private static final int DEFAULT_MAX_CLIENTS = 10000;
+    private static final int DEFAULT_ACCEPT_BACKLOG = 128;
+    private static final long HEARTBEAT_CHECK_MS = 250;
+    // Clients that send game messages without joining a room share this one
+    public static final String DEFAULT_ROOM = "default";
+
+    public enum Mode {
+        THREAD_PER_CLIENT,  // 每個連線一個阻塞執行緒
+        SELECTOR,           // 固定數量的 NIO selector 執行緒
+        VIRTUAL_THREADS     // 每個連線一個虛擬執行緒（需要 JDK 21）
+    }
+
     private int port;
+    private final Mode mode;
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private SelectorServer selectorServer;
     private boolean running;
-    private List<ClientHandler> clients;
+    private Set<ClientConnection> clients;
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Map<ClientConnection, Room> memberships = new ConcurrentHashMap<>();
+    private final RoomScheduler roomScheduler = new RoomScheduler(ROOM_WORKERS);
+    private final Matchmaker matchmaker = new Matchmaker(this::onMatch);
+    private final SpectatorFanout spectatorFanout = new SpectatorFanout();
+    private final Map<ClientConnection, Room> spectating = new ConcurrentHashMap<>();
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<ClientConnection, Session> clientSessions = new ConcurrentHashMap<>();
+    private final SecureRandom tokenRandom = new SecureRandom();
     private Thread acceptThread;
+    private boolean udpEnabled;
+    private volatile boolean relayMode = true;
+    private UdpEndpoint udpEndpoint;
+    private final LongAdder droppedPositions = new LongAdder();
+    private final LongAdder slowClientDisconnects = new LongAdder();
+    private final LongAdder migrationsIn = new LongAdder();
+    private final LongAdder sessionResumes = new LongAdder();
+    private volatile int maxClients = DEFAULT_MAX_CLIENTS;
+    private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+    private volatile boolean rateLimited = true;
+    private volatile boolean authoritative;
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder throttledMessages = new LongAdder();
+    private final LongAdder abusiveDisconnects = new LongAdder();
+    private final LongAdder deadLinkDisconnects = new LongAdder();
+    // Client to server, measured against this server's match clock
+    private final LatencyStats uplinkLatency = new LatencyStats();
+    private Thread heartbeatThread;
+    // Deadlines such as session expiry share one thread instead of a sleeping thread each
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(
+            task -> ConnectionThreads.newThread("game-timers", task, false));
+    private final Set<InetAddress> migrationPeers = ConcurrentHashMap.newKeySet();
+    private ServerSocket migrationSocket;
+    private volatile long lastMigrationPauseNanos = -1;
+
+    // Issued on every room join. A client that reconnects presents the token to get its
+    // seat back instead of starting over.
+    private static class Session {
+        final long token;
+        final Room room;
+        final int seat;
+        volatile ClientConnection client;
+
+        Session(long token, Room room, int seat, ClientConnection client) {
+            this.token = token;
+            this.room = room;
+            this.seat = seat;
+            this.client = client;
+        }
+    }
 
     public GameServer(int port) {
+        this(port, Mode.THREAD_PER_CLIENT);
+    }
+
+    public GameServer(int port, Mode mode) {
         this.port = port;
-        this.clients = new CopyOnWriteArrayList<>();
+        this.mode = mode;
+        this.clients = ConcurrentHashMap.newKeySet();
     }
 
     public static int findAvailablePort() {
@@ -35,37 +143,105 @@ public class GameServer {
         throw new RuntimeException("No available ports found between " + MIN_PORT + " and " + MAX_PORT);
     }
 
+    // UDP runs next to TCP on the same port number, so clients can pick either transport
+    public void setUdpEnabled(boolean udpEnabled) {
+        this.udpEnabled = udpEnabled;
+    }
+
+    // In relay mode frames are forwarded without being decoded; only the header is
+    // read for routing. Turning it off decodes (and so validates) every frame first.
+    public void setRelayMode(boolean relayMode) {
+        this.relayMode = relayMode;
+    }
+
+    // Connections over the cap are closed right after accept, before any thread or
+    // buffer is set up for them
+    public void setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+    }
+
+    // Pending connections the OS queues before accept; only read by start()
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    // Per-connection message rate limits, on by default
+    public void setRateLimited(boolean rateLimited) {
+        this.rateLimited = rateLimited;
+    }
+
+    // Rooms created from now on run the match here from the players' inputs, instead
+    // of relaying what each client decided (see Room). Off by default.
+    public void setAuthoritative(boolean authoritative) {
+        this.authoritative = authoritative;
+    }
+
+    private Room newRoom(String id) {
+        return new Room(id, spectatorFanout, authoritative);
+    }
+
     public void start() {
+        MatchClock.becomeReference();
+        if (mode == Mode.SELECTOR) {
+            startSelector();
+        } else {
+            startBlocking();
+        }
+        if (running) {
+            roomScheduler.start();
+            matchmaker.start();
+            spectatorFanout.start();
+            heartbeatThread = ConnectionThreads.newThread("game-heartbeat", this::heartbeatLoop, false);
+            heartbeatThread.start();
+            startMigrationListener();
+        }
+        if (running && udpEnabled) {
+            try {
+                udpEndpoint = new UdpEndpoint(this, port, CLIENT_IDLE_TIMEOUT_MS, droppedPositions);
+                udpEndpoint.start();
+            } catch (IOException e) {
+                System.out.println("Error starting UDP transport: " + e.getMessage());
+            }
+        }
+    }
+
+    private void startBlocking() {
         try {
             // Try using specified port, find available port if fails
             try {
-                serverSocket = new ServerSocket(port, 0, null);
+                serverSocket = new ServerSocket(port, acceptBacklog, null);
             } catch (IOException e) {
                 System.out.println("Port " + port + " is in use, trying to find available port...");
                 port = findAvailablePort();
-                serverSocket = new ServerSocket(port, 0, null);
+                serverSocket = new ServerSocket(port, acceptBacklog, null);
                 System.out.println("Using port: " + port);
             }
 
+            if (mode == Mode.VIRTUAL_THREADS && !ConnectionThreads.virtualThreadsAvailable()) {
+                System.out.println("Virtual threads need JDK 21, falling back to platform threads");
+            }
+
             running = true;
             System.out.println("Server started on port: " + port);
 
-            acceptThread = new Thread(() -> {
+            acceptThread = ConnectionThreads.newThread("game-accept", () -> {
                 while (running) {
                     try {
                         Socket clientSocket = serverSocket.accept();
+                        if (!admitConnection()) {
+                            clientSocket.close();
+                            continue;
+                        }
                         ClientHandler clientHandler = new ClientHandler(clientSocket);
-                        clients.add(clientHandler);
+                        addClient(clientHandler);
                         clientHandler.start();
-                        System.out.println("New client connected. Total clients: " + clients.size());
                     } catch (IOException e) {
                         if (running) {
                             System.out.println("Error accepting client: " + e.getMessage());
                         }
                     }
                 }
-            });
-            acceptThread.setDaemon(true);
+            }, useVirtualThreads());
             acceptThread.start();
 
         } catch (IOException e) {
@@ -73,16 +249,61 @@ public class GameServer {
         }
     }
 
+    private void startSelector() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(new InetSocketAddress(port), acceptBacklog);
+            } catch (IOException e) {
+                System.out.println("Port " + port + " is in use, trying to find available port...");
+                port = findAvailablePort();
+                serverChannel.bind(new InetSocketAddress(port), acceptBacklog);
+                System.out.println("Using port: " + port);
+            }
+
+            running = true;
+            selectorServer = new SelectorServer(this, serverChannel, IO_THREADS);
+            selectorServer.start();
+            System.out.println("Server started on port: " + port + " (selector, " + IO_THREADS + " I/O threads)");
+        } catch (IOException e) {
+            System.out.println("Error starting server: " + e.getMessage());
+        }
+    }
+
     public void stop() {
         running = false;
         try {
             if (serverSocket != null) {
                 serverSocket.close();
             }
-            for (ClientHandler client : clients) {
+            if (migrationSocket != null) {
+                migrationSocket.close();
+            }
+            if (selectorServer != null) {
+                selectorServer.stop();
+            }
+            if (udpEndpoint != null) {
+                udpEndpoint.stop();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            for (ClientConnection client : clients) {
                 client.stop();
             }
             clients.clear();
+            roomScheduler.stop();
+            matchmaker.stop();
+            spectatorFanout.stop();
+            if (heartbeatThread != null) {
+                heartbeatThread.interrupt();
+            }
+            timers.shutdownNow();
+            rooms.clear();
+            memberships.clear();
+            spectating.clear();
+            sessions.clear();
+            clientSessions.clear();
         } catch (IOException e) {
             System.out.println("Error stopping server: " + e.getMessage());
         }
@@ -92,19 +313,181 @@ public class GameServer {
         return port;
     }
 
-    private class ClientHandler implements Runnable {
+    public boolean isRunning() {
+        return running;
+    }
+
+    private boolean useVirtualThreads() {
+        return mode == Mode.VIRTUAL_THREADS;
+    }
+
+    void addClient(ClientConnection client) {
+        clients.add(client);
+        System.out.println("New client connected. Total clients: " + clients.size());
+    }
+
+    void removeClient(ClientConnection client) {
+        matchmaker.cancel(client);
+        stopSpectating(client);
+        Session session = clientSessions.remove(client);
+        if (session != null) {
+            detachSession(client, session);
+        } else {
+            leaveRoom(client);
+        }
+        if (clients.remove(client)) {
+            System.out.println("Client disconnected. Remaining clients: " + clients.size());
+        }
+    }
+
+    // Rooms are created by the first join and removed when the last member leaves.
+    // The join itself runs after the map update: it can overflow the joiner's queue and
+    // disconnect it, and the leave that follows updates this same entry, which
+    // ConcurrentHashMap does not allow from inside compute(). A room torn down by a
+    // concurrent last leave before the join landed is left for the one replacing it.
+    Room joinRoom(ClientConnection client, String roomId, int seat) {
+        leaveRoom(client);
+        stopSpectating(client);
+        if (!clients.contains(client)) {
+            // Already disconnected; don't recreate a room for it
+            return null;
+        }
+        Room room;
+        while (true) {
+            room = roomFor(roomId);
+            room.join(client, seat);
+            if (rooms.get(roomId) == room) {
+                break;
+            }
+            room.remove(client);
+        }
+        memberships.put(client, room);
+        if (!clients.contains(client)) {
+            // The catch-up overflowed its queue and it was disconnected meanwhile
+            leaveRoom(client);
+            return null;
+        }
+        System.out.println("Client joined room " + roomId + " (" + room.size() + " players, "
+                + rooms.size() + " rooms)");
+        return room;
+    }
+
+    // The room with this id, created and scheduled if there is none
+    private Room roomFor(String roomId) {
+        Room[] created = new Room[1];
+        Room room = rooms.computeIfAbsent(roomId, id -> created[0] = newRoom(id));
+        if (created[0] != null) {
+            roomScheduler.schedule(created[0]);
+        }
+        return room;
+    }
+
+    void leaveRoom(ClientConnection client) {
+        Session session = clientSessions.remove(client);
+        if (session != null) {
+            sessions.remove(session.token, session);
+        }
+        Room room = memberships.remove(client);
+        if (room == null) {
+            return;
+        }
+        rooms.computeIfPresent(room.getId(), (id, existing) -> {
+            existing.remove(client);
+            // Seats held for dropped players keep the room alive until they expire
+            if (existing.isAbandoned()) {
+                roomScheduler.unschedule(existing);
+                return null;
+            }
+            return existing;
+        });
+    }
+
+    // A spectator only receives the room's spectator frames; it takes no seat and
+    // whatever else it sends is ignored. Watching a room that has no players yet
+    // creates it, so viewers can wait for a match to start.
+    Room spectate(ClientConnection client, String roomId) {
+        leaveRoom(client);
+        stopSpectating(client);
+        if (!clients.contains(client)) {
+            return null;
+        }
+        // Added outside compute() for the same reason as joinRoom
+        Room room;
+        while (true) {
+            room = roomFor(roomId);
+            room.addSpectator(client);
+            if (rooms.get(roomId) == room) {
+                break;
+            }
+            room.removeSpectator(client);
+        }
+        spectating.put(client, room);
+        if (!clients.contains(client)) {
+            stopSpectating(client);
+            return null;
+        }
+        return room;
+    }
+
+    void stopSpectating(ClientConnection client) {
+        Room room = spectating.remove(client);
+        if (room == null) {
+            return;
+        }
+        rooms.computeIfPresent(room.getId(), (id, existing) -> {
+            existing.removeSpectator(client);
+            if (existing.isAbandoned()) {
+                roomScheduler.unschedule(existing);
+                return null;
+            }
+            return existing;
+        });
+    }
+
+    // Checked by every transport before it sets up a new connection
+    boolean admitConnection() {
+        if (clients.size() < maxClients) {
+            return true;
+        }
+        rejectedConnections.increment();
+        return false;
+    }
+
+    MessageRateLimiter newRateLimiter() {
+        return rateLimited ? new MessageRateLimiter(System.nanoTime()) : null;
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(OutboundQueue.DEFAULT_EVENT_CAPACITY, droppedPositions);
+    }
+
+    void slowClientDisconnected() {
+        System.out.println("Client is too slow, outbound queue full. Disconnecting");
+        slowClientDisconnects.increment();
+    }
+
+    private class ClientHandler implements Runnable, ClientConnection {
         private Socket socket;
-        private ObjectOutputStream out;
-        private ObjectInputStream in;
-        private boolean running;
+        private OutputStream out;
+        private InputStream in;
+        private final MessageCodec readCodec = new MessageCodec();
+        private final OutboundQueue outbound = newOutboundQueue();
+        private final MessageRateLimiter rateLimiter = newRateLimiter();
+        private final Heartbeat heartbeat = new Heartbeat(System.nanoTime());
+        private final byte[] writeScratch = new byte[1024];
+        private volatile boolean running;
         private Thread thread;
+        private Thread writerThread;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
             this.running = true;
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                // Reap clients that stop sending instead of holding a thread forever
+                socket.setSoTimeout(CLIENT_IDLE_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new BufferedInputStream(socket.getInputStream());
             } catch (IOException e) {
                 System.out.println("Error setting up client handler: " + e.getMessage());
                 stop();
@@ -112,40 +495,102 @@ public class GameServer {
         }
 
         public void start() {
-            thread = new Thread(this);
-            thread.setDaemon(true);
+            thread = ConnectionThreads.newThread("game-client", this, useVirtualThreads());
+            writerThread = ConnectionThreads.newThread("game-writer", this::writeLoop, useVirtualThreads());
             thread.start();
+            writerThread.start();
         }
 
         @Override
         public void run() {
             try {
                 while (running) {
-                    GameMessage message = (GameMessage) in.readObject();
-                    broadcastMessage(message, this);
+                    onFrame(readCodec.readRawFrame(in), this);
                 }
             } catch (EOFException e) {
                 System.out.println("Client disconnected");
+            } catch (SocketTimeoutException e) {
+                System.out.println("Client idle for " + CLIENT_IDLE_TIMEOUT_MS + " ms, closing connection");
             } catch (Exception e) {
-                System.out.println("Error handling client: " + e.getMessage());
+                if (running) {
+                    System.out.println("Error handling client: " + e.getMessage());
+                }
             } finally {
                 stop();
             }
         }
 
-        public void sendMessage(GameMessage message) {
-            if (!running) return;
+        private void writeLoop() {
             try {
-                out.writeObject(message);
-                out.flush();
+                while (running) {
+                    ByteBuffer frame = outbound.take(1, TimeUnit.SECONDS);
+                    if (frame == null) {
+                        continue;
+                    }
+                    writeFrame(frame);
+                    // Flush once the queue runs dry so a burst leaves in one write
+                    if (outbound.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (IOException e) {
-                System.out.println("Error sending message to client: " + e.getMessage());
+                if (running) {
+                    System.out.println("Error sending message to client: " + e.getMessage());
+                }
+            } finally {
+                stop();
+            }
+        }
+
+        private void writeFrame(ByteBuffer frame) throws IOException {
+            if (frame.hasArray()) {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            } else {
+                // Direct frames come from selector-mode readers
+                ByteBuffer source = frame.duplicate();
+                while (source.hasRemaining()) {
+                    int n = Math.min(source.remaining(), writeScratch.length);
+                    source.get(writeScratch, 0, n);
+                    out.write(writeScratch, 0, n);
+                }
+            }
+        }
+
+        @Override
+        public void sendFrame(GameMessage.MessageType type, int playerId, ByteBuffer frame) {
+            if (!running) return;
+            if (!outbound.offer(type, playerId, frame)) {
+                slowClientDisconnected();
                 stop();
             }
         }
 
+        @Override
+        public int getQueueDepth() {
+            return outbound.depth();
+        }
+
+        @Override
+        public long getDroppedPositions() {
+            return outbound.droppedPositions();
+        }
+
+        @Override
+        public MessageRateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
+
+        @Override
+        public Heartbeat getHeartbeat() {
+            return heartbeat;
+        }
+
+        @Override
         public void stop() {
             running = false;
+            outbound.close();
             try {
                 if (out != null) out.close();
                 if (in != null) in.close();
@@ -153,21 +598,600 @@ public class GameServer {
             } catch (IOException e) {
                 System.out.println("Error closing client connection: " + e.getMessage());
             }
-            clients.remove(this);
-            System.out.println("Client disconnected. Remaining clients: " + clients.size());
+            removeClient(this);
         }
     }
 
-    private void broadcastMessage(GameMessage message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.sendMessage(message);
+    // Entry point for every frame a client sends. The frame buffer is shared with all
+    // recipients, so it must not be modified after this call.
+    void onFrame(ByteBuffer frame, ClientConnection sender) throws ProtocolException {
+        GameMessage.MessageType type = MessageCodec.peekType(frame);
+        Heartbeat heartbeat = sender.getHeartbeat();
+        if (heartbeat != null) {
+            heartbeat.onReceive(System.nanoTime());
+        }
+        uplinkLatency.record(type, MatchClock.nowMillis() - MessageCodec.peekTimestamp(frame));
+        MessageRateLimiter limiter = sender.getRateLimiter();
+        if (limiter != null) {
+            if (limiter.isAbusive()) {
+                // Already being disconnected; drop whatever was still buffered
+                return;
+            }
+            if (!limiter.tryAcquire(type, System.nanoTime())) {
+                throttledMessages.increment();
+                if (limiter.isAbusive()) {
+                    abusiveDisconnects.increment();
+                    System.out.println("Client kept exceeding its message rate limits. Disconnecting");
+                    sender.stop();
+                }
+                return;
+            }
+        }
+        if (type == GameMessage.MessageType.HEARTBEAT) {
+            sender.sendMessage(Heartbeat.ackFor(MessageCodec.decodeFrame(frame)));
+            return;
+        }
+        if (type == GameMessage.MessageType.HEARTBEAT_ACK) {
+            if (heartbeat != null) {
+                heartbeat.onAck(MessageCodec.decodeFrame(frame), System.nanoTime());
             }
+            return;
+        }
+        int playerId = MessageCodec.peekPlayerId(frame);
+        if (type == GameMessage.MessageType.JOIN_ROOM) {
+            GameMessage join = MessageCodec.decodeFrame(frame);
+            Room room = joinRoom(sender, (String) join.getData(), playerId);
+            if (room != null) {
+                // Echo the join back so the client knows it is in
+                sender.sendMessage(join);
+                openSession(sender, room, playerId);
+                onRejoinMigrated(room, sender);
+            }
+            return;
+        }
+        if (type == GameMessage.MessageType.SPECTATE) {
+            GameMessage watch = MessageCodec.decodeFrame(frame);
+            if (spectate(sender, (String) watch.getData()) != null) {
+                sender.sendMessage(watch);
+            }
+            return;
+        }
+        if (type == GameMessage.MessageType.RESUME) {
+            ResumeRequest request = (ResumeRequest) MessageCodec.decodeFrame(frame).getData();
+            resumeSession(sender, request.getRoomId(), request.getToken());
+            return;
+        }
+        if (type == GameMessage.MessageType.QUEUE_MATCH) {
+            matchmaker.enqueue(sender, (Integer) MessageCodec.decodeFrame(frame).getData());
+            return;
+        }
+        if (type == GameMessage.MessageType.ROOM_TRANSFER) {
+            // Only accepted on the migration listener; from a client it would plant a room
+            // whose replayed frames every later joiner receives
+            return;
+        }
+        if (!relayMode) {
+            MessageCodec.decodeFrame(frame);
+        }
+        relayFrame(type, playerId, frame, sender);
+    }
+
+    // Sends each connection its heartbeat and closes the ones that went silent. A dead
+    // link is noticed within DEAD_AFTER_NANOS plus one pass, however the client dropped.
+    private void heartbeatLoop() {
+        while (running) {
+            try {
+                Thread.sleep(HEARTBEAT_CHECK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (ClientConnection client : clients) {
+                Heartbeat heartbeat = client.getHeartbeat();
+                if (heartbeat == null) {
+                    continue;
+                }
+                if (heartbeat.isDead(now)) {
+                    System.out.println("No frames from client for " + heartbeat.silentMillis(now)
+                            + " ms, closing connection");
+                    deadLinkDisconnects.increment();
+                    client.stop();
+                    continue;
+                }
+                GameMessage beat = heartbeat.next(now);
+                if (beat != null) {
+                    client.sendMessage(beat);
+                }
+            }
+        }
+    }
+
+    private void relayFrame(GameMessage.MessageType type, int playerId, ByteBuffer frame, ClientConnection sender) {
+        Room room = memberships.get(sender);
+        if (room == null) {
+            if (spectating.containsKey(sender)) {
+                return;
+            }
+            room = joinRoom(sender, DEFAULT_ROOM, playerId);
+            if (room == null) {
+                return;
+            }
+        }
+        if (room.isSimulated()) {
+            // The server decides where everyone is and who scored, so only inputs and a
+            // restart count; what clients claim about positions, hits and scores is dropped
+            switch (type) {
+                case PLAYER_INPUT:
+                    room.queueInput(frame, sender);
+                    return;
+                case GAME_STATE:
+                    room.requestRestart(frame);
+                    return;
+                case PLAYER_POSITION:
+                case PLAYER_ATTACK:
+                case PLAYER_DAMAGE:
+                    return;
+                default:
+                    break;
+            }
+        }
+        if (type == GameMessage.MessageType.PLAYER_INPUT) {
+            // Rollback peers: every frame repeats the inputs the other side has not
+            // acknowledged, so it goes out at once and nothing is kept for resumes
+            room.relay(type, playerId, frame, sender);
+        } else if (type == GameMessage.MessageType.PLAYER_POSITION) {
+            // Relayed at once, or on the room's next tick while positions are shed
+            room.queuePosition(playerId, frame, sender);
+        } else {
+            room.relayEvent(type, playerId, frame, sender);
+        }
+    }
+
+    private void openSession(ClientConnection client, Room room, int seat) {
+        long token;
+        do {
+            token = tokenRandom.nextLong();
+        } while (token == 0 || sessions.containsKey(token));
+        Session session = new Session(token, room, seat, client);
+        sessions.put(token, session);
+        clientSessions.put(client, session);
+        client.sendMessage(new GameMessage(GameMessage.MessageType.SESSION, token, seat));
+    }
+
+    // The client went away without leaving. Its seat is held for SESSION_GRACE_MS and
+    // the events it misses are kept, so a reconnect can pick up where it left off.
+    private void detachSession(ClientConnection client, Session session) {
+        Room room = memberships.remove(client);
+        Room.Away[] away = new Room.Away[1];
+        if (room != null) {
+            rooms.computeIfPresent(room.getId(), (id, existing) -> {
+                if (existing == room) {
+                    away[0] = existing.detach(client, session.token);
+                }
+                return existing;
+            });
+        }
+        if (away[0] == null) {
+            sessions.remove(session.token, session);
+            return;
+        }
+        System.out.println("Player " + session.seat + " dropped from room " + room.getId()
+                + ", holding the seat for " + SESSION_GRACE_MS + " ms");
+        schedule(() -> rooms.computeIfPresent(room.getId(), (id, existing) -> {
+            if (existing != room || !existing.expire(session.token, away[0])) {
+                return existing;
+            }
+            sessions.remove(session.token, session);
+            System.out.println("Session for player " + session.seat + " in room " + id + " expired");
+            if (existing.isAbandoned()) {
+                roomScheduler.unschedule(existing);
+                return null;
+            }
+            return existing;
+        }), SESSION_GRACE_MS);
+    }
+
+    // Runs a deadline on the shared timer thread. Once the server is stopping the timer
+    // is shut down and everything it would have cleaned up is cleared anyway.
+    private void schedule(Runnable task, long delayMs) {
+        try {
+            timers.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stop() already shut the timer down
+        }
+    }
+
+    // Gives a reconnecting client its seat back and answers with a RESYNC. An unknown or
+    // expired token, or one for another room, gets a RESYNC with player id 0, and the
+    // client joins normally.
+    private void resumeSession(ClientConnection client, String roomId, long token) {
+        Session issued = sessions.get(token);
+        // A token only resumes the room it was issued for
+        Session session = issued != null && issued.room.getId().equals(roomId) ? issued : null;
+        if (session != null && session.client != client && clients.contains(session.client)) {
+            // The old link is often still open on our side after a network blip
+            session.client.stop();
+        }
+        leaveRoom(client);
+        if (!clients.contains(client)) {
+            return;
+        }
+        boolean[] resumed = new boolean[1];
+        if (session != null) {
+            rooms.computeIfPresent(session.room.getId(), (id, existing) -> {
+                resumed[0] = existing == session.room && existing.resume(client, token, session.seat);
+                return existing;
+            });
+        }
+        if (!resumed[0]) {
+            if (session != null) {
+                sessions.remove(token, session);
+            }
+            client.sendMessage(new GameMessage(GameMessage.MessageType.RESYNC,
+                    new RoomSnapshot("", 0, new ArrayList<>()), 0));
+            return;
+        }
+        session.client = client;
+        clientSessions.put(client, session);
+        memberships.put(client, session.room);
+        sessionResumes.increment();
+        System.out.println("Player " + session.seat + " resumed in room " + session.room.getId());
+    }
+
+    // The players get the room id and their seat, then join it like any other room
+    private void onMatch(ClientConnection first, ClientConnection second, String roomId) {
+        first.sendMessage(new GameMessage(GameMessage.MessageType.MATCH_FOUND, roomId, 1));
+        second.sendMessage(new GameMessage(GameMessage.MessageType.MATCH_FOUND, roomId, 2));
+    }
+
+    // Moves a running match to another server process: freeze the room, snapshot it on
+    // its worker, stream the snapshot to the target's migration listener, then redirect
+    // the players to its game port. The freeze lasts until the players have reconnected,
+    // normally a few ticks.
+    public boolean migrateRoom(String roomId, String host, int targetPort) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            System.out.println("No such room: " + roomId);
+            return false;
+        }
+        long start = System.nanoTime();
+        RoomSnapshot snapshot = null;
+        try {
+            snapshot = room.freezeAndSnapshot().get(MIGRATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            sendSnapshot(snapshot, host, targetPort + MIGRATION_PORT_OFFSET);
+        } catch (IOException | ExecutionException | TimeoutException | RuntimeException e) {
+            System.out.println("Migration of room " + roomId + " failed: " + e);
+            room.resume(snapshot);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            room.resume(snapshot);
+            return false;
+        }
+        GameMessage redirect = new GameMessage(GameMessage.MessageType.REDIRECT, host + ":" + targetPort, 0);
+        for (ClientConnection member : room.getMembers()) {
+            member.sendMessage(redirect);
+        }
+        System.out.println("Room " + roomId + " migrated to " + host + ":" + targetPort + ", snapshot of "
+                + snapshot.getEntries().size() + " frames sent in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return true;
+    }
+
+    // Migrates every room, e.g. before shutting this process down for a deploy
+    public int drainTo(String host, int targetPort) {
+        int moved = 0;
+        for (String roomId : rooms.keySet()) {
+            if (migrateRoom(roomId, host, targetPort)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private void sendSnapshot(RoomSnapshot snapshot, String host, int targetPort) throws IOException {
+        try (Socket socket = new Socket(host, targetPort)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(MIGRATION_TIMEOUT_MS);
+            MessageCodec codec = new MessageCodec();
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            for (ByteBuffer chunk : RoomSnapshot.encodeChunks(GameMessage.MessageType.ROOM_TRANSFER, 0,
+                    snapshot.getRoomId(), snapshot.getMemberCount(), snapshot.getEntries(), MIGRATION_CHUNK_BYTES)) {
+                out.write(chunk.array(), chunk.position(), chunk.remaining());
+            }
+            codec.writeFrame(new GameMessage(GameMessage.MessageType.ROOM_TRANSFER,
+                    new RoomSnapshot(snapshot.getRoomId(), snapshot.getMemberCount(), new ArrayList<>()), 1), out);
+            out.flush();
+            GameMessage ack = codec.readFrame(new BufferedInputStream(socket.getInputStream()));
+            if (ack.getType() != GameMessage.MessageType.ROOM_TRANSFER || ack.getPlayerId() != 1) {
+                throw new IOException("Target refused the room");
+            }
+        }
+    }
+
+    private void onRejoinMigrated(Room room, ClientConnection client) {
+        long pause = room.onRejoin(client, System.nanoTime());
+        if (pause >= 0) {
+            lastMigrationPauseNanos = pause;
+            System.out.println("Room " + room.getId() + " resumed after migration, pause "
+                    + TimeUnit.NANOSECONDS.toMillis(pause) + " ms");
+        }
+    }
+
+    // Lets another server migrate rooms here; loopback is always allowed
+    public void allowMigrationFrom(String host) throws UnknownHostException {
+        for (InetAddress address : InetAddress.getAllByName(host)) {
+            migrationPeers.add(address);
         }
     }
 
-    public static void main(String[] args) {
-        GameServer server = new GameServer(5000);
+    private void startMigrationListener() {
+        try {
+            migrationSocket = new ServerSocket(port + MIGRATION_PORT_OFFSET);
+        } catch (IOException e) {
+            System.out.println("Cannot listen for migrations on port " + (port + MIGRATION_PORT_OFFSET)
+                    + ", rooms cannot be migrated here: " + e.getMessage());
+            return;
+        }
+        ConnectionThreads.newThread("game-migration", this::migrationLoop, false).start();
+    }
+
+    // One migration at a time: read the snapshot chunks, import it, answer, close
+    private void migrationLoop() {
+        while (running) {
+            try (Socket socket = migrationSocket.accept()) {
+                InetAddress from = socket.getInetAddress();
+                if (!from.isLoopbackAddress() && !migrationPeers.contains(from)) {
+                    System.out.println("Refusing room migration from " + from.getHostAddress());
+                    continue;
+                }
+                socket.setSoTimeout(MIGRATION_TIMEOUT_MS);
+                MessageCodec codec = new MessageCodec();
+                RoomSnapshot snapshot = readSnapshot(codec, new BufferedInputStream(socket.getInputStream()));
+                if (snapshot == null) {
+                    continue;
+                }
+                boolean accepted = importRoom(snapshot);
+                // The ack carries no entries; player id 1 means the room was accepted
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                codec.writeFrame(new GameMessage(GameMessage.MessageType.ROOM_TRANSFER,
+                        new RoomSnapshot(snapshot.getRoomId(), snapshot.getMemberCount(), new ArrayList<>()),
+                        accepted ? 1 : 0), out);
+                out.flush();
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Error receiving migrated room: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Collects the chunks up to the end marker; null if the stream is not a room transfer
+    private RoomSnapshot readSnapshot(MessageCodec codec, InputStream in) throws IOException {
+        String roomId = null;
+        int memberCount = 0;
+        List<RoomSnapshot.Entry> entries = new ArrayList<>();
+        for (int chunks = 0; chunks <= MIGRATION_MAX_CHUNKS; chunks++) {
+            GameMessage message = codec.readFrame(in);
+            if (message.getType() != GameMessage.MessageType.ROOM_TRANSFER) {
+                return null;
+            }
+            RoomSnapshot chunk = (RoomSnapshot) message.getData();
+            if (roomId == null) {
+                roomId = chunk.getRoomId();
+                memberCount = chunk.getMemberCount();
+            } else if (!roomId.equals(chunk.getRoomId())) {
+                throw new ProtocolException("Room transfer mixes rooms " + roomId + " and " + chunk.getRoomId());
+            }
+            entries.addAll(chunk.getEntries());
+            if (message.getPlayerId() == 1) {
+                return new RoomSnapshot(roomId, memberCount, entries);
+            }
+        }
+        throw new ProtocolException("Room transfer of " + roomId + " has too many chunks");
+    }
+
+    // Target side of a migration. Refuses a room id that is already in use here.
+    private boolean importRoom(RoomSnapshot snapshot) {
+        Room room = newRoom(snapshot.getRoomId());
+        room.importSnapshot(snapshot, System.nanoTime());
+        if (rooms.putIfAbsent(snapshot.getRoomId(), room) != null) {
+            System.out.println("Refusing migrated room " + snapshot.getRoomId() + ": already exists");
+            return false;
+        }
+        roomScheduler.schedule(room);
+        migrationsIn.increment();
+        System.out.println("Room " + snapshot.getRoomId() + " migrated in, waiting for "
+                + snapshot.getMemberCount() + " players");
+        schedule(() -> rooms.computeIfPresent(room.getId(), (id, existing) -> {
+            if (existing != room || !existing.isEmpty()) {
+                return existing;
+            }
+            System.out.println("Nobody returned to migrated room " + id + ", dropping it");
+            roomScheduler.unschedule(existing);
+            return null;
+        }), MIGRATION_ABANDON_MS);
+        return true;
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    public int getLobbyWaitingCount() {
+        return matchmaker.getWaitingCount();
+    }
+
+    public long getLobbyMatchCount() {
+        return matchmaker.getMatchCount();
+    }
+
+    public String getLobbyReport() {
+        return String.format("lobby: %d waiting, %d matches, avg decision %.1f us",
+                matchmaker.getWaitingCount(), matchmaker.getMatchCount(), matchmaker.getAverageDecisionMicros());
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long getThrottledMessages() {
+        return throttledMessages.sum();
+    }
+
+    public long getAbusiveDisconnects() {
+        return abusiveDisconnects.sum();
+    }
+
+    public long getDeadLinkDisconnects() {
+        return deadLinkDisconnects.sum();
+    }
+
+    // Link quality over all clients that answered a heartbeat
+    public String getLinkReport() {
+        int measured = 0;
+        double rttSum = 0;
+        double rttMax = 0;
+        double jitterSum = 0;
+        for (ClientConnection client : clients) {
+            Heartbeat heartbeat = client.getHeartbeat();
+            if (heartbeat == null || !heartbeat.getProbe().hasSample()) {
+                continue;
+            }
+            double rtt = heartbeat.getProbe().getRttMillis();
+            measured++;
+            rttSum += rtt;
+            rttMax = Math.max(rttMax, rtt);
+            jitterSum += heartbeat.getProbe().getJitterMillis();
+        }
+        if (measured == 0) {
+            return "links: no samples yet, dead links closed " + getDeadLinkDisconnects();
+        }
+        return String.format("links: %d measured, rtt avg %.1f ms max %.1f ms, jitter avg %.1f ms, dead links closed %d",
+                measured, rttSum / measured, rttMax, jitterSum / measured, getDeadLinkDisconnects());
+    }
+
+    // Delays everything spectators see by this much, e.g. so a player cannot watch
+    // the stream for the opponent's position. 0 (the default) is live.
+    public void setSpectatorDelayMillis(long delayMillis) {
+        spectatorFanout.setDelayMillis(delayMillis);
+    }
+
+    public int getSpectatorCount() {
+        return spectating.size();
+    }
+
+    public String getSpectatorReport() {
+        return String.format("spectators: %d, delay %d ms, frames built %d, sent %d, buffered %d",
+                spectating.size(), spectatorFanout.getDelayMillis(), spectatorFanout.getPublishedFrames(),
+                spectatorFanout.getSentFrames(), spectatorFanout.getBufferedFrames());
+    }
+
+    // One-way latency per message type from clients to this server
+    public LatencyStats getUplinkLatency() {
+        return uplinkLatency;
+    }
+
+    public long getSessionResumes() {
+        return sessionResumes.sum();
+    }
+
+    public long getMigrationsReceived() {
+        return migrationsIn.sum();
+    }
+
+    // Time from accepting a migrated room until all its players were back, or -1
+    public long getLastMigrationPauseMillis() {
+        long pause = lastMigrationPauseNanos;
+        return pause < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(pause);
+    }
+
+    // Per-worker tick time and overrun counts, for sizing how many rooms a host can run
+    public String getTickReport() {
+        return roomScheduler.report();
+    }
+
+    public int getOutboundQueueDepth() {
+        int depth = 0;
+        for (ClientConnection client : clients) {
+            depth += client.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public long getDroppedPositionUpdates() {
+        return droppedPositions.sum();
+    }
+
+    public long getSlowClientDisconnects() {
+        return slowClientDisconnects.sum();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Mode mode = args.length > 0 ? Mode.valueOf(args[0].toUpperCase()) : Mode.THREAD_PER_CLIENT;
+        // A second argument sets the port, e.g. to run several backends behind a GameGateway
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        GameServer server = new GameServer(port, mode);
+        // A third sets the connection cap
+        if (args.length > 2) {
+            server.setMaxClients(Integer.parseInt(args[2]));
+        }
+        // A fourth delays what spectators see, in milliseconds
+        if (args.length > 3) {
+            server.setSpectatorDelayMillis(Long.parseLong(args[3]));
+        }
+        // A fifth, "true", has the server simulate every match itself
+        if (args.length > 4) {
+            server.setAuthoritative(Boolean.parseBoolean(args[4]));
+        }
+        server.setUdpEnabled(true);
         server.start();
+
+        // Admin commands: "migrate <room> host:port", "drain host:port", "allow <host>", "rooms", "ticks", "lobby", "limits", "links", "spectators"
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        try {
+            while ((line = console.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                try {
+                    if (parts[0].equals("migrate") && parts.length == 3) {
+                        String[] hostPort = parts[2].split(":");
+                        server.migrateRoom(parts[1], hostPort[0], Integer.parseInt(hostPort[1]));
+                    } else if (parts[0].equals("drain") && parts.length == 2) {
+                        String[] hostPort = parts[1].split(":");
+                        System.out.println("Migrated " + server.drainTo(hostPort[0], Integer.parseInt(hostPort[1])) + " rooms");
+                    } else if (parts[0].equals("allow") && parts.length == 2) {
+                        server.allowMigrationFrom(parts[1]);
+                        System.out.println("Accepting migrated rooms from " + parts[1]);
+                    } else if (parts[0].equals("rooms")) {
+                        System.out.println(server.rooms.keySet());
+                    } else if (parts[0].equals("ticks")) {
+                        System.out.print(server.getTickReport());
+                    } else if (parts[0].equals("lobby")) {
+                        System.out.println(server.getLobbyReport());
+                    } else if (parts[0].equals("limits")) {
+                        System.out.println("clients " + server.clients.size() + "/" + server.maxClients
+                                + ", rejected " + server.getRejectedConnections()
+                                + ", throttled " + server.getThrottledMessages()
+                                + ", disconnected for abuse " + server.getAbusiveDisconnects());
+                    } else if (parts[0].equals("links")) {
+                        System.out.println(server.getLinkReport());
+                        System.out.println("one-way: " + server.getUplinkLatency().report());
+                    } else if (parts[0].equals("spectators")) {
+                        System.out.println(server.getSpectatorReport());
+                    } else if (!parts[0].isEmpty()) {
+                        System.out.println("Commands: migrate <room> host:port, drain host:port, allow <host>, rooms, ticks, lobby, limits, links, spectators");
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Invalid command: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            // no console
+        }
+        // Server threads are daemons, so keep the process alive while it runs
+        while (server.isRunning()) {
+            Thread.sleep(1000);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+// HashRing.java
+package com.fightinggame.network;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Consistent hashing of room ids onto backend servers. Each backend owns many
+// points on the ring, so adding or removing one only moves about 1/N of the rooms.
+class HashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final NavigableMap<Integer, InetSocketAddress> ring = new ConcurrentSkipListMap<>();
+
+    void add(InetSocketAddress backend) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(backend + "#" + i), backend);
+        }
+    }
+
+    void remove(InetSocketAddress backend) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.remove(hash(backend + "#" + i), backend);
+        }
+    }
+
+    // Returns null when no backend is registered
+    InetSocketAddress lookup(String key) {
+        Map.Entry<Integer, InetSocketAddress> entry = ring.ceilingEntry(hash(key));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry != null ? entry.getValue() : null;
+    }
+
+    List<InetSocketAddress> backends() {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (InetSocketAddress backend : ring.values()) {
+            if (!result.contains(backend)) {
+                result.add(backend);
+            }
+        }
+        return result;
+    }
+
+    // FNV-1a followed by the murmur3 finalizer, so similar keys spread over the ring
+    static int hash(String key) {
+        int h = 0x811C9DC5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
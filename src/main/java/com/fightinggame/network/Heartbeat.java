@@ -0,0 +1,65 @@
+// Heartbeat.java
+package com.fightinggame.network;
+
+import java.util.concurrent.TimeUnit;
+
+// Liveness and link estimate for one connection. Each side sends a HEARTBEAT once a
+// second and the other echoes it in a HEARTBEAT_ACK, which gives RTT and jitter.
+// Any frame received counts as a sign of life, so a busy link needs no extra traffic
+// to stay up; a link that has been silent for DEAD_AFTER_NANOS is considered dead.
+class Heartbeat {
+    static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final long DEAD_AFTER_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final RttProbe probe = new RttProbe();
+    private volatile long lastHeardNanos;
+    private volatile long lastSentNanos;
+
+    Heartbeat(long now) {
+        lastHeardNanos = now;
+        lastSentNanos = now - INTERVAL_NANOS;
+    }
+
+    void onReceive(long now) {
+        lastHeardNanos = now;
+    }
+
+    // Returns a HEARTBEAT to send, or null if one was sent recently
+    GameMessage next(long now) {
+        if (now - lastSentNanos < INTERVAL_NANOS) {
+            return null;
+        }
+        lastSentNanos = now;
+        return new GameMessage(GameMessage.MessageType.HEARTBEAT, now, 0);
+    }
+
+    // The ack also carries the responder's match clock, for MatchClock on the client
+    static GameMessage ackFor(GameMessage heartbeat) {
+        long[] times = {(Long) heartbeat.getData(), MatchClock.nowMicros()};
+        return new GameMessage(GameMessage.MessageType.HEARTBEAT_ACK, times, 0);
+    }
+
+    static long sentNanos(GameMessage ack) {
+        return ((long[]) ack.getData())[0];
+    }
+
+    static long responderMicros(GameMessage ack) {
+        return ((long[]) ack.getData())[1];
+    }
+
+    void onAck(GameMessage ack, long now) {
+        probe.onEcho(sentNanos(ack), now);
+    }
+
+    boolean isDead(long now) {
+        return now - lastHeardNanos > DEAD_AFTER_NANOS;
+    }
+
+    long silentMillis(long now) {
+        return TimeUnit.NANOSECONDS.toMillis(now - lastHeardNanos);
+    }
+
+    RttProbe getProbe() {
+        return probe;
+    }
+}
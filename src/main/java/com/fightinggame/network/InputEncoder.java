@@ -0,0 +1,50 @@
+// InputEncoder.java
+package com.fightinggame.network;
+
+// Numbers the local player's inputs by tick and builds each tick's InputFrame with
+// every input the receiver has not acknowledged, up to InputFrame.MAX_INPUTS.
+public class InputEncoder {
+    private static final int HISTORY = 64;
+
+    private final byte[] history = new byte[HISTORY];
+    private int nextTick;
+    private int ackedTick = -1;
+    private int receivedTick = -1;
+
+    public InputFrame encode(int buttons) {
+        int tick = nextTick++;
+        history[tick % HISTORY] = (byte) buttons;
+        return frameUpTo(tick);
+    }
+
+    // The unacknowledged inputs again, without a new tick, e.g. while a rollback peer
+    // waits for the other side; null if everything was acknowledged
+    public InputFrame resend() {
+        return nextTick - 1 > ackedTick ? frameUpTo(nextTick - 1) : null;
+    }
+
+    private InputFrame frameUpTo(int tick) {
+        int count = Math.min(InputFrame.MAX_INPUTS, tick - ackedTick);
+        byte[] frame = new byte[count];
+        for (int i = 0; i < count; i++) {
+            frame[i] = history[(tick - i) % HISTORY];
+        }
+        return new InputFrame(tick, receivedTick, frame);
+    }
+
+    // The receiver reports the newest input tick it has
+    public void acknowledge(int tick) {
+        if (tick < nextTick && tick > ackedTick) {
+            ackedTick = tick;
+        }
+    }
+
+    // Rollback peers: the newest of the other peer's inputs we have, sent as the ack
+    public void setReceivedTick(int tick) {
+        receivedTick = tick;
+    }
+
+    public int getNextTick() {
+        return nextTick;
+    }
+}
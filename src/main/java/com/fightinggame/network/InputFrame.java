@@ -0,0 +1,68 @@
+// InputFrame.java
+package com.fightinggame.network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+// Payload of PLAYER_INPUT: a player's buttons (MatchSimulation.LEFT and so on) for its
+// latest tick, plus the ticks before it that the receiver has not acknowledged yet,
+// so one lost datagram is covered by the next. Between rollback peers it also
+// acknowledges the newest of the other peer's inputs the sender has.
+//
+// Layout: varint last tick, varint ack + 1, varint count, then count button bytes,
+// newest first.
+public class InputFrame {
+    public static final int MAX_INPUTS = 32;
+
+    private final int lastTick;
+    private final int ack;
+    private final byte[] buttons;
+
+    public InputFrame(int lastTick, int ack, byte[] buttons) {
+        this.lastTick = lastTick;
+        this.ack = ack;
+        this.buttons = buttons;
+    }
+
+    public int getLastTick() {
+        return lastTick;
+    }
+
+    // -1 when the sender has none, or talks to a server, which acks in MATCH_SNAPSHOT
+    public int getAck() {
+        return ack;
+    }
+
+    public int getOldestTick() {
+        return lastTick - buttons.length + 1;
+    }
+
+    // Only for ticks between getOldestTick() and getLastTick()
+    public int getButtons(int tick) {
+        return buttons[lastTick - tick];
+    }
+
+    void write(ByteBuffer buf) {
+        MessageCodec.putVarInt(buf, lastTick);
+        MessageCodec.putVarInt(buf, ack + 1);
+        MessageCodec.putVarInt(buf, buttons.length);
+        buf.put(buttons);
+    }
+
+    static InputFrame read(ByteBuffer buf) throws ProtocolException {
+        int lastTick = MessageCodec.getVarInt(buf);
+        int ack = MessageCodec.getVarInt(buf) - 1;
+        int count = MessageCodec.getVarInt(buf);
+        if (count < 1 || count > MAX_INPUTS || count > lastTick + 1) {
+            throw new ProtocolException("Invalid input count: " + count);
+        }
+        byte[] buttons = new byte[count];
+        buf.get(buttons);
+        return new InputFrame(lastTick, ack, buttons);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InputFrame{lastTick=%d, ack=%d, count=%d}", lastTick, ack, buttons.length);
+    }
+}
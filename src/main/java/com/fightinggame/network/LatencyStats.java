@@ -0,0 +1,52 @@
+// LatencyStats.java
+package com.fightinggame.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// One-way latency per message type: the receiver's match clock minus the timestamp
+// the sender stamped on the message. Only meaningful between synchronized clocks, so
+// samples far outside any real latency (a peer that has not synchronized yet, or an
+// event replayed long after it was sent) are ignored. Safe to record from any thread.
+public class LatencyStats {
+    private static final long MIN_PLAUSIBLE_MILLIS = -1000;
+    private static final long MAX_PLAUSIBLE_MILLIS = 10000;
+
+    private final LongAdder[] sums = new LongAdder[GameMessage.MessageType.values().length];
+    private final LongAdder[] counts = new LongAdder[GameMessage.MessageType.values().length];
+
+    public LatencyStats() {
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = new LongAdder();
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(GameMessage.MessageType type, long latencyMillis) {
+        if (latencyMillis < MIN_PLAUSIBLE_MILLIS || latencyMillis > MAX_PLAUSIBLE_MILLIS) {
+            return;
+        }
+        sums[type.ordinal()].add(latencyMillis);
+        counts[type.ordinal()].increment();
+    }
+
+    public boolean hasSamples(GameMessage.MessageType type) {
+        return counts[type.ordinal()].sum() > 0;
+    }
+
+    // Average one-way latency in milliseconds, or -1 without samples
+    public double getAverageMillis(GameMessage.MessageType type) {
+        long count = counts[type.ordinal()].sum();
+        return count == 0 ? -1 : (double) sums[type.ordinal()].sum() / count;
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (GameMessage.MessageType type : GameMessage.MessageType.values()) {
+            long count = counts[type.ordinal()].sum();
+            if (count > 0) {
+                report.append(String.format("%s %.1f ms (%d) ", type, getAverageMillis(type), count));
+            }
+        }
+        return report.length() == 0 ? "no samples" : report.toString().trim();
+    }
+}
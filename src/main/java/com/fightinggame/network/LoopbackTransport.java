@@ -0,0 +1,105 @@
+// LoopbackTransport.java
+package com.fightinggame.network;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// Connects a GameClient to a GameServer running in the same JVM. Outgoing frames
+// wait in a lock-free queue until flush() hands them to the server; frames the
+// server sends back are decoded straight into the client's inbox. No socket,
+// no kernel round trip and no extra threads.
+class LoopbackTransport implements ClientTransport {
+    private final GameServer server;
+    private final Consumer<GameMessage> inbox;
+    private final Runnable onClosed;
+    private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+    private final LoopbackConnection connection = new LoopbackConnection();
+    private volatile boolean connected;
+
+    LoopbackTransport(GameServer server, Consumer<GameMessage> inbox, Runnable onClosed) {
+        this.server = server;
+        this.inbox = inbox;
+        this.onClosed = onClosed;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (!server.isRunning()) {
+            throw new IOException("Local server is not running");
+        }
+        connected = true;
+        server.addClient(connection);
+    }
+
+    @Override
+    public void send(GameMessage message) {
+        // The server needs bytes anyway to forward to remote clients
+        pending.offer(MessageCodec.encodeFrame(message));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ByteBuffer frame;
+        while ((frame = pending.poll()) != null) {
+            server.onFrame(frame, connection);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected && server.isRunning();
+    }
+
+    @Override
+    public void close() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        pending.clear();
+        server.removeClient(connection);
+        onClosed.run();
+    }
+
+    private class LoopbackConnection implements ClientConnection {
+        @Override
+        public void sendFrame(GameMessage.MessageType type, int playerId, ByteBuffer frame) {
+            if (!connected) return;
+            try {
+                inbox.accept(MessageCodec.decodeFrame(frame));
+            } catch (ProtocolException e) {
+                System.out.println("Error decoding local message: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getDroppedPositions() {
+            return 0;
+        }
+
+        @Override
+        public MessageRateLimiter getRateLimiter() {
+            // The host's own client, in the same process
+            return null;
+        }
+
+        @Override
+        public Heartbeat getHeartbeat() {
+            return null;
+        }
+
+        @Override
+        public void stop() {
+            LoopbackTransport.this.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+// MatchClock.java
+package com.fightinggame.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The clock every GameMessage is stamped with, shared by all machines in a match.
+//
+// A server, or a host whose opponent connects directly, is the reference: its match
+// clock is just its own monotonic clock. A client estimates the reference clock from
+// heartbeat round trips, NTP style: for a request sent at local t0, answered at
+// remote time t1 and received at local t3, the offset is t1 - (t0 + t3) / 2, and the
+// samples with the shortest round trip are the most trustworthy. A line fitted through
+// those good samples gives both the offset and the drift between the two oscillators.
+//
+// The estimate never runs backwards; a correction that would make it go back is
+// absorbed by holding the clock until it catches up. Only a jump of more than
+// NEW_REFERENCE_MICROS, i.e. a different reference after a redirect, steps it back.
+public final class MatchClock {
+    private static final long EPOCH_NANOS = System.nanoTime();
+    private static final int SAMPLE_WINDOW = 64;
+    // Samples whose round trip is this much above the best one are not used
+    private static final long GOOD_DELAY_MARGIN_MICROS = 1000;
+    // The drift is only fitted once the good samples span this long
+    private static final long MIN_DRIFT_SPAN_MICROS = TimeUnit.SECONDS.toMicros(10);
+    private static final long NEW_REFERENCE_MICROS = TimeUnit.SECONDS.toMicros(1);
+
+    // offset + drift * (local - base), in microseconds; replaced as a whole on each sample
+    private static final class Estimate {
+        final long baseLocalMicros;
+        final double offsetMicros;
+        final double drift;
+
+        Estimate(long baseLocalMicros, double offsetMicros, double drift) {
+            this.baseLocalMicros = baseLocalMicros;
+            this.offsetMicros = offsetMicros;
+            this.drift = drift;
+        }
+
+        long at(long localMicros) {
+            return localMicros + Math.round(offsetMicros + drift * (localMicros - baseLocalMicros));
+        }
+    }
+
+    private static volatile Estimate estimate;
+    private static volatile boolean reference;
+    private static final AtomicLong lastMicros = new AtomicLong(Long.MIN_VALUE);
+
+    // Guarded by the class lock
+    private static final long[] sampleLocal = new long[SAMPLE_WINDOW];
+    private static final long[] sampleOffset = new long[SAMPLE_WINDOW];
+    private static final long[] sampleDelay = new long[SAMPLE_WINDOW];
+    private static int sampleCount;
+    private static int nextSample;
+
+    private MatchClock() {
+    }
+
+    private static long localMicros(long nanos) {
+        return (nanos - EPOCH_NANOS) / 1000;
+    }
+
+    // Current match time in microseconds
+    public static long nowMicros() {
+        long local = localMicros(System.nanoTime());
+        Estimate current = estimate;
+        if (current == null) {
+            // This process is the reference, which is monotonic already
+            return local;
+        }
+        long estimated = current.at(local);
+        return lastMicros.accumulateAndGet(estimated, (last, next) ->
+                next < last && last - next < NEW_REFERENCE_MICROS ? last : next);
+    }
+
+    // The match-clock tick every message carries
+    public static long nowMillis() {
+        return nowMicros() / 1000;
+    }
+
+    public static boolean isSynchronized() {
+        return estimate != null;
+    }
+
+    // Drift against the reference in parts per million, 0 until it can be measured
+    public static double getDriftPpm() {
+        Estimate current = estimate;
+        return current == null ? 0 : current.drift * 1_000_000;
+    }
+
+    public static double getOffsetMillis() {
+        Estimate current = estimate;
+        long local = localMicros(System.nanoTime());
+        return current == null ? 0 : (current.at(local) - local) / 1000.0;
+    }
+
+    // Called by a server or a direct host when it starts: the others follow this
+    // process's clock, so it never adjusts its own
+    static void becomeReference() {
+        reference = true;
+    }
+
+    // One exchange with the reference: request sent and answer received on this
+    // machine's System.nanoTime(), remoteMicros read from the reference's match clock
+    static synchronized void onSample(long sentNanos, long receivedNanos, long remoteMicros) {
+        if (reference) {
+            return;
+        }
+        long t0 = localMicros(sentNanos);
+        long t3 = localMicros(receivedNanos);
+        if (t3 < t0) {
+            return;
+        }
+        long offset = remoteMicros - (t0 + t3) / 2;
+        Estimate previous = estimate;
+        if (previous != null && Math.abs(previous.at(t3) - t3 - offset) >= NEW_REFERENCE_MICROS) {
+            // A different reference: the old samples say nothing about it
+            System.out.println("Match clock moved to a new reference, offset now " + offset / 1000 + " ms");
+            sampleCount = 0;
+            nextSample = 0;
+        }
+        sampleLocal[nextSample] = (t0 + t3) / 2;
+        sampleOffset[nextSample] = offset;
+        sampleDelay[nextSample] = t3 - t0;
+        nextSample = (nextSample + 1) % SAMPLE_WINDOW;
+        sampleCount = Math.min(sampleCount + 1, SAMPLE_WINDOW);
+        estimate = fit();
+    }
+
+    // Least squares line through the good samples; with too short a span only the
+    // offset is used, taken from the best sample
+    private static Estimate fit() {
+        long minDelay = Long.MAX_VALUE;
+        int best = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            if (sampleDelay[i] < minDelay) {
+                minDelay = sampleDelay[i];
+                best = i;
+            }
+        }
+        long limit = minDelay + Math.max(GOOD_DELAY_MARGIN_MICROS, minDelay / 2);
+        long base = sampleLocal[best];
+        int n = 0;
+        double sumX = 0;
+        double sumY = 0;
+        long minX = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        for (int i = 0; i < sampleCount; i++) {
+            if (sampleDelay[i] > limit) {
+                continue;
+            }
+            n++;
+            sumX += sampleLocal[i] - base;
+            sumY += sampleOffset[i];
+            minX = Math.min(minX, sampleLocal[i]);
+            maxX = Math.max(maxX, sampleLocal[i]);
+        }
+        if (n < 2 || maxX - minX < MIN_DRIFT_SPAN_MICROS) {
+            return new Estimate(base, sampleOffset[best], 0);
+        }
+        double meanX = sumX / n;
+        double meanY = sumY / n;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            if (sampleDelay[i] > limit) {
+                continue;
+            }
+            double dx = sampleLocal[i] - base - meanX;
+            sxx += dx * dx;
+            sxy += dx * (sampleOffset[i] - meanY);
+        }
+        double drift = sxy / sxx;
+        return new Estimate(base, meanY - drift * meanX, drift);
+    }
+}
@@ -0,0 +1,107 @@
+// MatchSnapshot.java
+package com.fightinggame.network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import com.fightinggame.simulation.MatchSimulation;
+import com.fightinggame.simulation.PlayerState;
+
+// Payload of MATCH_SNAPSHOT: the state of a room the server simulates, after one of
+// its ticks, with the newest input tick applied for each seat so a client knows
+// which of its inputs the state already includes (-1 for none yet).
+//
+// Layout: varint tick, then per seat varint last input tick + 1, float x, float y,
+// float vertical velocity, byte flags (on ground, facing left, moving), then varint
+// attack ticks, cooldown ticks, score cooldown ticks, hits taken and score. Positions
+// and velocities move in steps of 0.5 px, which floats hold exactly.
+public class MatchSnapshot {
+    private final int tick;
+    private final int[] lastInputTicks;
+    private final PlayerState[] players;
+
+    // Copies the simulation's current state
+    public MatchSnapshot(MatchSimulation simulation, int lastInputTick1, int lastInputTick2) {
+        this(simulation.getTick(), new int[]{lastInputTick1, lastInputTick2},
+                new PlayerState[]{copy(simulation.getPlayer(1)), copy(simulation.getPlayer(2))});
+    }
+
+    private MatchSnapshot(int tick, int[] lastInputTicks, PlayerState[] players) {
+        this.tick = tick;
+        this.lastInputTicks = lastInputTicks;
+        this.players = players;
+    }
+
+    private static PlayerState copy(PlayerState state) {
+        PlayerState copy = new PlayerState();
+        copy.copyFrom(state);
+        return copy;
+    }
+
+    public int getTick() {
+        return tick;
+    }
+
+    public int getLastInputTick(int seat) {
+        return lastInputTicks[seat - 1];
+    }
+
+    public PlayerState getPlayer(int seat) {
+        return players[seat - 1];
+    }
+
+    // Overwrites the simulation with this state
+    public void applyTo(MatchSimulation simulation) {
+        simulation.getPlayer(1).copyFrom(players[0]);
+        simulation.getPlayer(2).copyFrom(players[1]);
+        simulation.setTick(tick);
+    }
+
+    void write(ByteBuffer buf) {
+        MessageCodec.putVarInt(buf, tick);
+        for (int i = 0; i < players.length; i++) {
+            PlayerState player = players[i];
+            MessageCodec.putVarInt(buf, lastInputTicks[i] + 1);
+            buf.putFloat((float) player.getX());
+            buf.putFloat((float) player.getY());
+            buf.putFloat((float) player.getVelocityY());
+            buf.put((byte) ((player.isOnGround() ? 1 : 0) | (player.isFacingLeft() ? 2 : 0)
+                    | (player.isMoving() ? 4 : 0)));
+            MessageCodec.putVarInt(buf, player.getAttackTicks());
+            MessageCodec.putVarInt(buf, player.getCooldownTicks());
+            MessageCodec.putVarInt(buf, player.getScoreCooldownTicks());
+            MessageCodec.putVarInt(buf, player.getHitsTaken());
+            MessageCodec.putVarInt(buf, player.getScore());
+        }
+    }
+
+    static MatchSnapshot read(ByteBuffer buf) throws ProtocolException {
+        int tick = MessageCodec.getVarInt(buf);
+        int[] lastInputTicks = new int[2];
+        PlayerState[] players = new PlayerState[2];
+        for (int i = 0; i < players.length; i++) {
+            PlayerState player = new PlayerState();
+            lastInputTicks[i] = MessageCodec.getVarInt(buf) - 1;
+            player.setX(buf.getFloat());
+            player.setY(buf.getFloat());
+            player.setVelocityY(buf.getFloat());
+            int flags = buf.get();
+            player.setOnGround((flags & 1) != 0);
+            player.setFacingLeft((flags & 2) != 0);
+            player.setMoving((flags & 4) != 0);
+            player.setAttackTicks(MessageCodec.getVarInt(buf));
+            player.setCooldownTicks(MessageCodec.getVarInt(buf));
+            player.setScoreCooldownTicks(MessageCodec.getVarInt(buf));
+            player.setHitsTaken(MessageCodec.getVarInt(buf));
+            player.setScore(MessageCodec.getVarInt(buf));
+            players[i] = player;
+        }
+        return new MatchSnapshot(tick, lastInputTicks, players);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MatchSnapshot{tick=%d, inputs=%d/%d, score=%d-%d}", tick,
+                lastInputTicks[0], lastInputTicks[1], players[0].getScore(), players[1].getScore());
+    }
+}
@@ -0,0 +1,233 @@
+// Matchmaker.java
+package com.fightinggame.network;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lobby queue: pairs waiting players with a similar rating and hands both a room.
+//
+// Waiting tickets sit in one FIFO queue per rating bucket. A pairing decision only
+// looks at the head of the buckets within reach, nearest first, so its cost does not
+// depend on how many players are waiting. Tickets are claimed with a CAS on their
+// state instead of a lock, so queue requests on different I/O threads never block
+// each other; a ticket that lost a race is skipped and removed lazily.
+//
+// The accepted rating gap starts at BASE_BAND and widens the longer a player waits.
+// A sweeper thread retries waiting players a few times a second as their band grows.
+class Matchmaker {
+    static final int MAX_RATING = 3000;
+    private static final int BUCKET_WIDTH = 50;
+    private static final int BASE_BAND = 50;
+    private static final int BAND_PER_SECOND = 25;
+    private static final int MAX_BAND = 500;
+    private static final long SWEEP_INTERVAL_MS = 250;
+
+    private static final int WAITING = 0;
+    private static final int MATCHING = 1;
+    private static final int DONE = 2;
+
+    private final List<Queue<Ticket>> buckets;
+    private final Map<ClientConnection, Ticket> tickets = new ConcurrentHashMap<>();
+    private final MatchListener listener;
+    private final AtomicLong matchCount = new AtomicLong();
+    private final LongAdder decisionNanos = new LongAdder();
+    private final LongAdder decisions = new LongAdder();
+    private volatile boolean running;
+    private Thread sweeper;
+
+    interface MatchListener {
+        // first waited longer and gets seat 1
+        void onMatch(ClientConnection first, ClientConnection second, String roomId);
+    }
+
+    private static class Ticket {
+        final ClientConnection client;
+        final int rating;
+        final long queuedAt;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+
+        Ticket(ClientConnection client, int rating, long queuedAt) {
+            this.client = client;
+            this.rating = rating;
+            this.queuedAt = queuedAt;
+        }
+
+        int band(long now) {
+            long waited = TimeUnit.NANOSECONDS.toSeconds(now - queuedAt);
+            return (int) Math.min(MAX_BAND, BASE_BAND + waited * BAND_PER_SECOND);
+        }
+    }
+
+    Matchmaker(MatchListener listener) {
+        this.listener = listener;
+        int bucketCount = MAX_RATING / BUCKET_WIDTH + 1;
+        buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    void start() {
+        running = true;
+        sweeper = ConnectionThreads.newThread("game-matchmaker", this::sweepLoop, false);
+        sweeper.start();
+    }
+
+    void stop() {
+        running = false;
+        if (sweeper != null) {
+            sweeper.interrupt();
+        }
+    }
+
+    // Pairs the client right away if someone suitable is waiting, otherwise queues it.
+    // Queueing again replaces the client's previous ticket.
+    void enqueue(ClientConnection client, int rating) {
+        long start = System.nanoTime();
+        Ticket ticket = new Ticket(client, Math.max(0, Math.min(MAX_RATING, rating)), start);
+        // Claimed until it is in a bucket, so nobody pairs with a half-queued ticket
+        ticket.state.set(MATCHING);
+        Ticket previous = tickets.put(client, ticket);
+        if (previous != null) {
+            previous.state.set(DONE);
+        }
+        Ticket partner = findPartner(ticket, start);
+        if (partner != null) {
+            complete(ticket, partner);
+        } else {
+            buckets.get(bucketOf(ticket.rating)).offer(ticket);
+            // Fails if the client disconnected meanwhile; the dead ticket is removed lazily
+            ticket.state.compareAndSet(MATCHING, WAITING);
+        }
+        decisionNanos.add(System.nanoTime() - start);
+        decisions.increment();
+    }
+
+    void cancel(ClientConnection client) {
+        Ticket ticket = tickets.remove(client);
+        if (ticket != null) {
+            ticket.state.set(DONE);
+        }
+    }
+
+    // Looks at the oldest live ticket of each bucket in reach, nearest bucket first.
+    // The oldest ticket of a bucket also has its widest band, so later ones are skipped.
+    private Ticket findPartner(Ticket ticket, long now) {
+        int home = bucketOf(ticket.rating);
+        int reach = MAX_BAND / BUCKET_WIDTH + 1;
+        int myBand = ticket.band(now);
+        for (int distance = 0; distance <= reach; distance++) {
+            Ticket partner = tryBucket(home - distance, ticket, myBand, now);
+            if (partner == null && distance > 0) {
+                partner = tryBucket(home + distance, ticket, myBand, now);
+            }
+            if (partner != null) {
+                return partner;
+            }
+        }
+        return null;
+    }
+
+    private Ticket tryBucket(int index, Ticket ticket, int myBand, long now) {
+        if (index < 0 || index >= buckets.size()) {
+            return null;
+        }
+        Iterator<Ticket> it = buckets.get(index).iterator();
+        while (it.hasNext()) {
+            Ticket candidate = it.next();
+            int state = candidate.state.get();
+            if (state == DONE) {
+                it.remove();
+                continue;
+            }
+            if (state == MATCHING || candidate == ticket) {
+                continue;
+            }
+            // Either player's band is enough, so a long wait also widens who can find you
+            int gap = Math.abs(candidate.rating - ticket.rating);
+            if (gap > Math.max(myBand, candidate.band(now))) {
+                return null;
+            }
+            if (candidate.state.compareAndSet(WAITING, DONE)) {
+                it.remove();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // The partner is already claimed; the searching ticket is still MATCHING unless it
+    // was cancelled meanwhile, in which case the partner goes back in the queue
+    private void complete(Ticket searching, Ticket partner) {
+        if (!searching.state.compareAndSet(MATCHING, DONE)) {
+            if (tickets.get(partner.client) == partner) {
+                partner.state.set(MATCHING);
+                buckets.get(bucketOf(partner.rating)).offer(partner);
+                partner.state.compareAndSet(MATCHING, WAITING);
+            }
+            return;
+        }
+        tickets.remove(searching.client, searching);
+        tickets.remove(partner.client, partner);
+        // The player who waited longer gets seat 1
+        Ticket first = partner.queuedAt <= searching.queuedAt ? partner : searching;
+        Ticket second = first == partner ? searching : partner;
+        String roomId = "match-" + matchCount.incrementAndGet();
+        listener.onMatch(first.client, second.client, roomId);
+    }
+
+    // Retries every waiting ticket whose band has grown past the base band
+    private void sweepLoop() {
+        while (running) {
+            try {
+                Thread.sleep(SWEEP_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Queue<Ticket> bucket : buckets) {
+                Iterator<Ticket> it = bucket.iterator();
+                while (it.hasNext()) {
+                    Ticket ticket = it.next();
+                    if (ticket.band(now) <= BASE_BAND || !ticket.state.compareAndSet(WAITING, MATCHING)) {
+                        continue;
+                    }
+                    Ticket partner = findPartner(ticket, now);
+                    if (partner != null) {
+                        it.remove();
+                        complete(ticket, partner);
+                    } else {
+                        ticket.state.compareAndSet(MATCHING, WAITING);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int bucketOf(int rating) {
+        return rating / BUCKET_WIDTH;
+    }
+
+    int getWaitingCount() {
+        return tickets.size();
+    }
+
+    long getMatchCount() {
+        return matchCount.get();
+    }
+
+    // Average time spent deciding a queue request, in microseconds
+    double getAverageDecisionMicros() {
+        long count = decisions.sum();
+        return count == 0 ? 0 : decisionNanos.sum() / 1000.0 / count;
+    }
+}
@@ -0,0 +1,433 @@
+// MessageCodec.java
+package com.fightinggame.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary wire format for GameMessage.
+ *
+ * Frame layout: varint length, then the body. Body layout: one byte type tag
+ * (the MessageType ordinal, so new types must only be appended), varint player
+ * id, varint match-clock timestamp in ms (see MatchClock), then a fixed payload per type:
+ *   PLAYER_POSITION  PositionSnapshot (quantized, delta against an acked baseline)
+ *   PLAYER_ATTACK    float x, float y
+ *   PLAYER_DAMAGE    varint damage
+ *   GAME_STATE       varint player1Hits, varint player2Hits
+ *   PING, PONG       long sender timestamp (echoed back unchanged in PONG)
+ *   JOIN_ROOM        string room id
+ *   ROOM_TRANSFER    RoomSnapshot (streamed in chunks with player id 0, ended by an empty one with
+ *                    player id 1; the ack is empty with player id 1 if the room was accepted)
+ *   REDIRECT         string "host:port"
+ *   QUEUE_MATCH      varint rating
+ *   MATCH_FOUND      string room id (player id is the assigned seat)
+ *   SESSION          long session token
+ *   RESUME           ResumeRequest (string room id, long session token)
+ *   HEARTBEAT        long sender timestamp
+ *   HEARTBEAT_ACK    long heartbeat timestamp echoed back, long responder match clock in us
+ *   RESYNC           RoomSnapshot (player id 1 if the session was resumed, possibly over several frames; 0 if not)
+ *   SPECTATE         string room id
+ *   SPECTATOR_FRAME  RoomSnapshot (positions as keyframes, then events since the last frame)
+ *   CATCH_UP         RoomSnapshot (the room's keyframe and delta log, possibly over several frames)
+ *   PLAYER_INPUT     InputFrame (buttons for the latest ticks, newest first)
+ *   MATCH_SNAPSHOT   MatchSnapshot (simulated state and the last input applied per seat)
+ *
+ * Strings are a varint byte count followed by UTF-8 bytes.
+ *
+ * An instance owns a reusable frame buffer, so keep one per stream direction.
+ */
+public class MessageCodec {
+    public static final int MAX_FRAME_SIZE = 16 * 1024;
+    public static final int MAX_STRING_BYTES = 256;
+
+    private static final GameMessage.MessageType[] TYPES = GameMessage.MessageType.values();
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_FRAME_SIZE));
+
+    private final byte[] frame = new byte[MAX_FRAME_SIZE];
+    private final ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
+
+    public void writeFrame(GameMessage message, OutputStream out) throws IOException {
+        frameBuffer.clear();
+        encode(message, frameBuffer);
+        writeVarInt(out, frameBuffer.position());
+        out.write(frame, 0, frameBuffer.position());
+    }
+
+    public GameMessage readFrame(InputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        int read = 0;
+        while (read < length) {
+            int n = in.read(frame, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        frameBuffer.clear();
+        frameBuffer.limit(length);
+        return decode(frameBuffer);
+    }
+
+    // Reads one frame without decoding it. The returned heap buffer holds the whole
+    // frame, length prefix included, so it can be forwarded as-is.
+    public ByteBuffer readRawFrame(InputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        int prefix = varIntSize(length);
+        byte[] bytes = new byte[prefix + length];
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+        putVarInt(frame, length);
+        int read = prefix;
+        while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        frame.clear();
+        return frame;
+    }
+
+    // Decodes a complete frame without moving the caller's position
+    public static GameMessage decodeFrame(ByteBuffer frame) throws ProtocolException {
+        ByteBuffer body = frame.duplicate();
+        if (readFrameLength(body) < 0) {
+            throw new ProtocolException("Truncated frame");
+        }
+        return decode(body);
+    }
+
+    // Header peeks for routing: a frame is [varint length][type tag][varint player id][varint timestamp]...
+    // They read client bytes nothing has validated yet, so a truncated header is a
+    // ProtocolException like any other malformed frame.
+    public static GameMessage.MessageType peekType(ByteBuffer frame) throws ProtocolException {
+        int tagIndex = frame.position() + varIntSizeAt(frame);
+        if (tagIndex >= frame.limit()) {
+            throw new ProtocolException("Truncated frame header");
+        }
+        int tag = frame.get(tagIndex) & 0xFF;
+        if (tag >= TYPES.length) {
+            throw new ProtocolException("Unknown message type: " + tag);
+        }
+        return TYPES[tag];
+    }
+
+    public static int peekPlayerId(ByteBuffer frame) throws ProtocolException {
+        return getVarInt(headerAfterType(frame));
+    }
+
+    public static long peekTimestamp(ByteBuffer frame) throws ProtocolException {
+        ByteBuffer header = headerAfterType(frame);
+        getVarInt(header);
+        return getVarLong(header);
+    }
+
+    private static ByteBuffer headerAfterType(ByteBuffer frame) throws ProtocolException {
+        int start = frame.position() + varIntSizeAt(frame) + 1;
+        if (start > frame.limit()) {
+            throw new ProtocolException("Truncated frame header");
+        }
+        ByteBuffer header = frame.duplicate();
+        header.position(start);
+        return header;
+    }
+
+    private static int varIntSizeAt(ByteBuffer buf) throws ProtocolException {
+        int pos = buf.position();
+        for (int size = 1; size <= 5; size++) {
+            if (pos + size > buf.limit()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            if ((buf.get(pos + size - 1) & 0x80) == 0) {
+                return size;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    // Encodes a complete frame (length prefix included) into a new buffer ready for writing
+    public static ByteBuffer encodeFrame(GameMessage message) {
+        ByteBuffer body = SCRATCH.get();
+        body.clear();
+        encode(message, body);
+        body.flip();
+        ByteBuffer frame = ByteBuffer.allocate(varIntSize(body.remaining()) + body.remaining());
+        putVarInt(frame, body.remaining());
+        frame.put(body);
+        frame.flip();
+        return frame;
+    }
+
+    // Consumes the length prefix and returns the body length, or returns -1 and leaves
+    // the buffer untouched when the prefix has not fully arrived yet
+    public static int readFrameLength(ByteBuffer buf) throws ProtocolException {
+        int value = 0;
+        int pos = buf.position();
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos >= buf.limit()) {
+                return -1;
+            }
+            byte b = buf.get(pos++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value <= 0 || value > MAX_FRAME_SIZE) {
+                    throw new ProtocolException("Invalid frame length: " + value);
+                }
+                buf.position(pos);
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    public static void encode(GameMessage message, ByteBuffer buf) {
+        buf.put((byte) message.getType().ordinal());
+        putVarInt(buf, message.getPlayerId());
+        putVarLong(buf, message.getTimestamp());
+        Object data = message.getData();
+        switch (message.getType()) {
+            case PLAYER_POSITION:
+                ((PositionSnapshot) data).write(buf);
+                break;
+            case PLAYER_ATTACK: {
+                double[] position = (double[]) data;
+                buf.putFloat((float) position[0]);
+                buf.putFloat((float) position[1]);
+                break;
+            }
+            case PLAYER_DAMAGE:
+                putVarInt(buf, (Integer) data);
+                break;
+            case GAME_STATE: {
+                int[] scores = (int[]) data;
+                putVarInt(buf, scores[0]);
+                putVarInt(buf, scores[1]);
+                break;
+            }
+            case PING:
+            case PONG:
+            case SESSION:
+            case HEARTBEAT:
+                buf.putLong((Long) data);
+                break;
+            case RESUME:
+                ((ResumeRequest) data).write(buf);
+                break;
+            case HEARTBEAT_ACK: {
+                long[] times = (long[]) data;
+                buf.putLong(times[0]);
+                buf.putLong(times[1]);
+                break;
+            }
+            case QUEUE_MATCH:
+                putVarInt(buf, (Integer) data);
+                break;
+            case JOIN_ROOM:
+            case REDIRECT:
+            case MATCH_FOUND:
+            case SPECTATE:
+                putString(buf, (String) data);
+                break;
+            case ROOM_TRANSFER:
+            case RESYNC:
+            case SPECTATOR_FRAME:
+            case CATCH_UP:
+                ((RoomSnapshot) data).write(buf);
+                break;
+            case PLAYER_INPUT:
+                ((InputFrame) data).write(buf);
+                break;
+            case MATCH_SNAPSHOT:
+                ((MatchSnapshot) data).write(buf);
+                break;
+            default:
+                // PLAYER_ANIMATION carries no payload on the wire
+                break;
+        }
+    }
+
+    public static GameMessage decode(ByteBuffer buf) throws ProtocolException {
+        try {
+            int tag = buf.get() & 0xFF;
+            if (tag >= TYPES.length) {
+                throw new ProtocolException("Unknown message type: " + tag);
+            }
+            GameMessage.MessageType type = TYPES[tag];
+            int playerId = getVarInt(buf);
+            long timestamp = getVarLong(buf);
+            Object data;
+            switch (type) {
+                case PLAYER_POSITION:
+                    data = PositionSnapshot.read(buf);
+                    break;
+                case PLAYER_ATTACK:
+                    data = new double[]{buf.getFloat(), buf.getFloat()};
+                    break;
+                case PLAYER_DAMAGE:
+                    data = getVarInt(buf);
+                    break;
+                case GAME_STATE:
+                    data = new int[]{getVarInt(buf), getVarInt(buf)};
+                    break;
+                case PING:
+                case PONG:
+                case SESSION:
+                case HEARTBEAT:
+                    data = buf.getLong();
+                    break;
+                case RESUME:
+                    data = ResumeRequest.read(buf);
+                    break;
+                case HEARTBEAT_ACK:
+                    data = new long[]{buf.getLong(), buf.getLong()};
+                    break;
+                case QUEUE_MATCH:
+                    data = getVarInt(buf);
+                    break;
+                case JOIN_ROOM:
+                case REDIRECT:
+                case MATCH_FOUND:
+                case SPECTATE:
+                    data = getString(buf);
+                    break;
+                case ROOM_TRANSFER:
+                case RESYNC:
+                case SPECTATOR_FRAME:
+                case CATCH_UP:
+                    data = RoomSnapshot.read(buf);
+                    break;
+                case PLAYER_INPUT:
+                    data = InputFrame.read(buf);
+                    break;
+                case MATCH_SNAPSHOT:
+                    data = MatchSnapshot.read(buf);
+                    break;
+                default:
+                    data = null;
+                    break;
+            }
+            return new GameMessage(type, data, playerId, timestamp);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated frame");
+        }
+    }
+
+    public static void putVarInt(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static int getVarInt(ByteBuffer buf) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buf.hasRemaining()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    public static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer buf) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buf.hasRemaining()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    public static void putString(ByteBuffer buf, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String too long: " + bytes.length + " bytes");
+        }
+        putVarInt(buf, bytes.length);
+        buf.put(bytes);
+    }
+
+    public static String getString(ByteBuffer buf) throws ProtocolException {
+        int length = getVarInt(buf);
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new ProtocolException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void putSignedVarInt(ByteBuffer buf, int value) {
+        putVarInt(buf, (value << 1) ^ (value >> 31));
+    }
+
+    public static int getSignedVarInt(ByteBuffer buf) throws ProtocolException {
+        int value = getVarInt(buf);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+}
@@ -0,0 +1,111 @@
+// MessageRateLimiter.java
+package com.fightinggame.network;
+
+import java.util.concurrent.TimeUnit;
+
+// Per-connection token buckets, one per kind of message. A frame that finds its bucket
+// empty is dropped and counts as a strike. Strikes leak away over time, so a short
+// burst (a held key, a hiccup) is forgiven, but a client that keeps sending too fast
+// piles them up and is reported as abusive.
+//
+// Not thread-safe: each connection's frames are read by one thread.
+class MessageRateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    enum Category {
+        //        per second, burst
+        POSITION(90, 30),   // clients send at most one per 60 Hz tick, positions or inputs
+        EVENT(30, 30),      // attacks, damage, scores
+        PROBE(10, 10),      // PING / PONG and heartbeats
+        CONTROL(2, 5);      // joins, queueing, resumes, migrations
+
+        final int perSecond;
+        final int burst;
+
+        Category(int perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+    }
+
+    private static final Category[] CATEGORY_BY_TYPE = new Category[GameMessage.MessageType.values().length];
+
+    static {
+        for (GameMessage.MessageType type : GameMessage.MessageType.values()) {
+            CATEGORY_BY_TYPE[type.ordinal()] = categoryOf(type);
+        }
+    }
+
+    private static final int MAX_STRIKES = 60;
+    private static final int STRIKES_FORGIVEN_PER_SECOND = 10;
+
+    // Scaled by NANOS_PER_SECOND so refills stay in integer math
+    private final long[] tokens = new long[Category.values().length];
+    private final long[] lastRefill = new long[Category.values().length];
+    private long strikes;
+    private long lastStrike;
+    private boolean abusive;
+
+    MessageRateLimiter(long now) {
+        for (Category category : Category.values()) {
+            tokens[category.ordinal()] = category.burst * NANOS_PER_SECOND;
+            lastRefill[category.ordinal()] = now;
+        }
+        lastStrike = now;
+    }
+
+    private static Category categoryOf(GameMessage.MessageType type) {
+        switch (type) {
+            case PLAYER_POSITION:
+            case PLAYER_INPUT:
+                return Category.POSITION;
+            case PLAYER_ATTACK:
+            case PLAYER_DAMAGE:
+            case GAME_STATE:
+            case PLAYER_ANIMATION:
+                return Category.EVENT;
+            case PING:
+            case PONG:
+            case HEARTBEAT:
+            case HEARTBEAT_ACK:
+                return Category.PROBE;
+            default:
+                return Category.CONTROL;
+        }
+    }
+
+    // False if the frame should be dropped
+    boolean tryAcquire(GameMessage.MessageType type, long now) {
+        if (abusive) {
+            return false;
+        }
+        Category category = CATEGORY_BY_TYPE[type.ordinal()];
+        int i = category.ordinal();
+        long max = category.burst * NANOS_PER_SECOND;
+        // Capping the elapsed time first keeps the multiplication from overflowing
+        long elapsed = Math.min(now - lastRefill[i], (long) category.burst * NANOS_PER_SECOND / category.perSecond);
+        tokens[i] = Math.min(max, tokens[i] + elapsed * category.perSecond);
+        lastRefill[i] = now;
+        if (tokens[i] >= NANOS_PER_SECOND) {
+            tokens[i] -= NANOS_PER_SECOND;
+            return true;
+        }
+        strike(now);
+        return false;
+    }
+
+    private void strike(long now) {
+        long forgiven = Math.min(now - lastStrike, (long) MAX_STRIKES * NANOS_PER_SECOND / STRIKES_FORGIVEN_PER_SECOND)
+                * STRIKES_FORGIVEN_PER_SECOND;
+        strikes = Math.max(0, strikes - forgiven) + NANOS_PER_SECOND;
+        lastStrike = now;
+        if (strikes > MAX_STRIKES * NANOS_PER_SECOND) {
+            abusive = true;
+        }
+    }
+
+    // Set once the client kept going over its limits; it should be disconnected
+    boolean isAbusive() {
+        return abusive;
+    }
+}
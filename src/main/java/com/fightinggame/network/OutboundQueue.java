@@ -0,0 +1,134 @@
+// OutboundQueue.java
+package com.fightinggame.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Per-client send queue with two lanes. Events (attack, damage, game state) are
+// kept in order and always drain first. Positions keep only the newest frame per
+// player, so a client that falls behind skips stale positions instead of queueing them.
+class OutboundQueue {
+    static final int DEFAULT_EVENT_CAPACITY = 256;
+
+    private final int eventCapacity;
+    private final ArrayDeque<ByteBuffer> events = new ArrayDeque<>();
+    private final Map<Integer, ByteBuffer> positions = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder droppedTotal;
+    private long droppedPositions;
+    private boolean closed;
+
+    OutboundQueue(int eventCapacity, LongAdder droppedTotal) {
+        this.eventCapacity = eventCapacity;
+        this.droppedTotal = droppedTotal;
+    }
+
+    // Returns false when the event lane is full; the caller should treat the client as too slow
+    boolean offer(GameMessage.MessageType type, int playerId, ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (type == GameMessage.MessageType.PLAYER_POSITION) {
+                if (positions.put(playerId, frame) != null) {
+                    droppedPositions++;
+                    droppedTotal.increment();
+                }
+            } else {
+                if (events.size() >= eventCapacity) {
+                    return false;
+                }
+                events.offer(frame);
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ByteBuffer poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits up to the timeout for a frame; returns null on timeout or after close()
+    ByteBuffer take(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            ByteBuffer frame;
+            while ((frame = next()) == null && !closed) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return events.isEmpty() && positions.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return events.size() + positions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedPositions() {
+        lock.lock();
+        try {
+            return droppedPositions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            events.clear();
+            positions.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer next() {
+        ByteBuffer frame = events.poll();
+        if (frame == null && !positions.isEmpty()) {
+            Iterator<ByteBuffer> it = positions.values().iterator();
+            frame = it.next();
+            it.remove();
+        }
+        return frame;
+    }
+}
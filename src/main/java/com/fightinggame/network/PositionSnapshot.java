@@ -0,0 +1,94 @@
+// PositionSnapshot.java
+package com.fightinggame.network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+// Payload of PLAYER_POSITION. Coordinates are quantized to 1/QUANTIZATION pixel.
+// A keyframe carries absolute coordinates; otherwise x/y are deltas against the
+// baseline snapshot, which is always one the receiver has acknowledged.
+public class PositionSnapshot {
+    public static final int QUANTIZATION = 2;
+    public static final int NO_SEQ = -1;
+
+    private final int seq;
+    private final int ack;
+    private final int baselineSeq;
+    private final int x;
+    private final int y;
+    private final boolean attacking;
+
+    public PositionSnapshot(int seq, int ack, int baselineSeq, int x, int y, boolean attacking) {
+        this.seq = seq;
+        this.ack = ack;
+        this.baselineSeq = baselineSeq;
+        this.x = x;
+        this.y = y;
+        this.attacking = attacking;
+    }
+
+    public static int quantize(double value) {
+        return (int) Math.round(value * QUANTIZATION);
+    }
+
+    public static double dequantize(int value) {
+        return (double) value / QUANTIZATION;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    // Latest snapshot seq the sender has received from the peer, or NO_SEQ
+    public int getAck() {
+        return ack;
+    }
+
+    public int getBaselineSeq() {
+        return baselineSeq;
+    }
+
+    public boolean isKeyframe() {
+        return baselineSeq == NO_SEQ;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public boolean isAttacking() {
+        return attacking;
+    }
+
+    // Layout: varint seq, varint ack + 1, varint (baseline distance << 1 | attacking),
+    // then zigzag x and y (absolute for keyframes, deltas otherwise)
+    void write(ByteBuffer buf) {
+        int distance = isKeyframe() ? 0 : seq - baselineSeq;
+        MessageCodec.putVarInt(buf, seq);
+        MessageCodec.putVarInt(buf, ack + 1);
+        MessageCodec.putVarInt(buf, (distance << 1) | (attacking ? 1 : 0));
+        MessageCodec.putSignedVarInt(buf, x);
+        MessageCodec.putSignedVarInt(buf, y);
+    }
+
+    static PositionSnapshot read(ByteBuffer buf) throws ProtocolException {
+        int seq = MessageCodec.getVarInt(buf);
+        int ack = MessageCodec.getVarInt(buf) - 1;
+        int header = MessageCodec.getVarInt(buf);
+        int distance = header >>> 1;
+        int baselineSeq = distance == 0 ? NO_SEQ : seq - distance;
+        int x = MessageCodec.getSignedVarInt(buf);
+        int y = MessageCodec.getSignedVarInt(buf);
+        return new PositionSnapshot(seq, ack, baselineSeq, x, y, (header & 1) != 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PositionSnapshot{seq=%d, ack=%d, baseline=%d, x=%d, y=%d, attacking=%b}",
+            seq, ack, baselineSeq, x, y, attacking);
+    }
+}
@@ -0,0 +1,37 @@
+// ResumeRequest.java
+package com.fightinggame.network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+// Payload of RESUME: the session token, and the room it belongs to so a gateway can
+// route the reconnect to the backend that holds the seat.
+//
+// Layout: string room id, long session token.
+public class ResumeRequest {
+    private final String roomId;
+    private final long token;
+
+    public ResumeRequest(String roomId, long token) {
+        this.roomId = roomId;
+        this.token = token;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    void write(ByteBuffer buf) {
+        MessageCodec.putString(buf, roomId);
+        buf.putLong(token);
+    }
+
+    static ResumeRequest read(ByteBuffer buf) throws ProtocolException {
+        String roomId = MessageCodec.getString(buf);
+        return new ResumeRequest(roomId, buf.getLong());
+    }
+}
@@ -0,0 +1,794 @@
+// Room.java
+package com.fightinggame.network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.fightinggame.simulation.MatchSimulation;
+
+// One match. Frames are only relayed between members of the same room, so the
+// cost of a message depends on the room size, not on how many clients the server has.
+//
+// Events and positions are relayed as soon as they arrive, on the I/O thread that read
+// them. Positions take no lock on the way: the worker that owns the room picks them up
+// on its next tick only to track them for joiners, spectators and snapshots. When the
+// RoomScheduler sheds player positions, they are queued instead and the worker sends
+// the newest per player on every other tick.
+//
+// Events are relayed under the room's lock. They are rare next to positions, and the
+// lock keeps their order the same for members and for players who dropped and are
+// waiting to resume.
+//
+// Spectators are not members and nothing is relayed to them. Once the players' frames
+// for a tick are out, the worker builds one SPECTATOR_FRAME every few ticks and hands
+// it to the SpectatorFanout, which sends it to all of them.
+//
+// For late joiners the room keeps a keyframe of its state (score and every player's
+// absolute position) and a log of what was relayed since, bounded by taking a new
+// keyframe every KEYFRAME_INTERVAL_TICKS or when the log fills up. A player or
+// spectator who joins gets both in one CATCH_UP burst before any live frame, so the
+// time to a complete picture does not depend on how long the match has been running.
+// Both live under the room's lock, like the event relay, so nothing is sent twice.
+//
+// A simulated room is authoritative: the worker runs the match itself from the
+// players' inputs and sends everyone a MATCH_SNAPSHOT of the result, and what players
+// say about positions, hits or scores is dropped. Each player's inputs are applied
+// in the player's own tick order, one per room tick; a player whose next input has
+// not arrived waits in place rather than having one guessed for it, so the state
+// after a given input is exactly what that player's client computes.
+class Room {
+    // Events held while frozen for migration; more than this and the rest are dropped
+    private static final int MAX_FROZEN_EVENTS = 128;
+    // Events kept for a dropped player; a player who misses more has to rejoin
+    private static final int MAX_MISSED_EVENTS = 128;
+    // Events held for the next spectator frames; more than this and the rest are dropped
+    private static final int MAX_SPECTATOR_EVENTS = 128;
+    // Keeps a spectator frame within one UDP datagram; the rest wait for the next frame
+    private static final int MAX_EVENTS_PER_SPECTATOR_FRAME = 32;
+    private static final int KEYFRAME_INTERVAL_TICKS = 2 * RoomScheduler.TICK_RATE;
+    private static final int MAX_LOG_ENTRIES = 256;
+    // Catch-up and resync bursts are split into frames of this size, so each fits one
+    // UDP datagram and stays far below MessageCodec.MAX_FRAME_SIZE
+    private static final int CATCH_UP_CHUNK_BYTES = 1024;
+    // Inputs kept per player; a player further behind skips ahead
+    private static final int INPUT_WINDOW = 64;
+    // Inputs waiting beyond this many are applied at once, so a burst after a stall
+    // does not leave the player lagging behind
+    private static final int MAX_INPUT_BACKLOG = 3;
+    // Periods caught up on one tick, e.g. two when ticks are coalesced or more after
+    // skipped ticks; a longer stall is dropped rather than replayed in one burst
+    private static final int MAX_STEPS_PER_TICK = 4;
+
+    private final String id;
+    private final List<ClientConnection> members = new CopyOnWriteArrayList<>();
+    // Player id each member gave when joining, used to tell whose frames are whose
+    private final Map<ClientConnection, Integer> seats = new ConcurrentHashMap<>();
+    // Filled by I/O threads, drained by the owning worker
+    private final Queue<PendingPosition> pendingPositions = new ConcurrentLinkedQueue<>();
+    // Set by the worker from its load level; while false positions wait for a tick
+    private volatile boolean relayPositionsOnArrival = true;
+    // Tick state, only touched by the owning worker. The newest position per player is
+    // kept after it is sent, so a migration snapshot always has everyone's position.
+    private final Map<Integer, PendingPosition> latestPositions = new HashMap<>();
+    // Every position relayed since the last tick, in order. All of them are tracked, as
+    // the players may acknowledge any of them and send the next delta against it.
+    private final List<PendingPosition> relayedPositions = new ArrayList<>();
+    private long tickCost;
+    private volatile boolean closed;
+
+    // Migration out: while frozen nothing is relayed, and the worker answers a
+    // snapshot request on its next tick
+    private volatile boolean frozen;
+    private final Queue<RoomSnapshot.Entry> frozenEvents = new ConcurrentLinkedQueue<>();
+    private volatile CompletableFuture<RoomSnapshot> snapshotRequest;
+    private volatile RoomSnapshot.Entry lastGameState;
+
+    // Migration in: state streamed from the previous server, replayed to players as they return
+    private volatile RoomSnapshot imported;
+    private final Set<Integer> replayedSeats = ConcurrentHashMap.newKeySet();
+    private volatile long importedAtNanos;
+
+    // Session resume: players who dropped, by session token, and work for the next tick
+    private final Map<Long, Away> away = new ConcurrentHashMap<>();
+    private final Queue<Runnable> tickTasks = new ConcurrentLinkedQueue<>();
+
+    private final SpectatorFanout fanout;
+    private final List<ClientConnection> spectators = new CopyOnWriteArrayList<>();
+
+    // Guarded by the room's lock. Positions are rebuilt from the frames relayed to the
+    // players, since those are delta encoded against baselines only the players know.
+    private final Queue<RoomSnapshot.Entry> spectatorEvents = new ArrayDeque<>();
+    private final Map<Integer, SnapshotDecoder> decoders = new HashMap<>();
+    private final Map<Integer, TrackedPosition> positions = new HashMap<>();
+    private final List<RoomSnapshot.Entry> keyframe = new ArrayList<>();
+    private final List<RoomSnapshot.Entry> deltaLog = new ArrayList<>();
+    private int ticksSinceKeyframe;
+
+    // Simulated rooms only. The simulation and the inputs are worker state; inputs
+    // arrive from I/O threads through the queue.
+    private final MatchSimulation simulation;
+    private final Queue<PendingInput> pendingInputs = new ConcurrentLinkedQueue<>();
+    private final SeatInputs[] seatInputs = {new SeatInputs(), new SeatInputs()};
+    // When the next 60 Hz step is due, by the worker's clock. The worker's tick count
+    // cannot be used: it advances by one per loop whether the loop covered one period,
+    // two coalesced ones, or skipped some.
+    private long nextStepNanos;
+    private boolean stepClockStarted;
+    private volatile RoomSnapshot.Entry matchState;
+
+    static class Away {
+        final int seat;
+        // Guarded by the room's lock
+        final Queue<RoomSnapshot.Entry> missed = new ArrayDeque<>();
+        boolean overflowed;
+        volatile boolean resuming;
+
+        Away(int seat) {
+            this.seat = seat;
+        }
+    }
+
+    private static class PendingPosition {
+        final int playerId;
+        final ByteBuffer frame;
+        final ClientConnection sender;
+        boolean sent;
+
+        PendingPosition(int playerId, ByteBuffer frame, ClientConnection sender) {
+            this.playerId = playerId;
+            this.frame = frame;
+            this.sender = sender;
+        }
+    }
+
+    // A player's position as rebuilt here, and the one last written to the keyframe or
+    // the log, which the next log entry is a delta against. Seqs are the sender's own,
+    // so a joiner that acknowledges one gives the sender a baseline it really has.
+    private static class TrackedPosition {
+        int seat;
+        int seq;
+        int x;
+        int y;
+        boolean attacking;
+        int loggedSeq = PositionSnapshot.NO_SEQ;
+        int loggedX;
+        int loggedY;
+    }
+
+    private static class PendingInput {
+        final int seat;
+        final ByteBuffer frame;
+
+        PendingInput(int seat, ByteBuffer frame) {
+            this.seat = seat;
+            this.frame = frame;
+        }
+    }
+
+    // One player's inputs by the player's own tick number
+    private static class SeatInputs {
+        final byte[] buttons = new byte[INPUT_WINDOW];
+        int newest = -1;
+        int applied = -1;
+        boolean started;
+
+        void receive(InputFrame frame) {
+            if (!started) {
+                // The first input sets where this player's ticks start
+                started = true;
+                applied = frame.getOldestTick() - 1;
+                newest = applied;
+            }
+            for (int tick = Math.max(newest + 1, frame.getLastTick() - INPUT_WINDOW + 1);
+                 tick <= frame.getLastTick(); tick++) {
+                // Inputs lost beyond the frame's redundancy repeat its oldest one
+                int known = Math.max(tick, frame.getOldestTick());
+                buttons[tick % INPUT_WINDOW] = (byte) frame.getButtons(known);
+            }
+            newest = Math.max(newest, frame.getLastTick());
+            applied = Math.max(applied, newest - INPUT_WINDOW);
+        }
+
+        // How many inputs to apply this period
+        int due() {
+            int backlog = newest - applied;
+            return backlog > MAX_INPUT_BACKLOG ? backlog - MAX_INPUT_BACKLOG + 1 : backlog;
+        }
+
+        int next() {
+            return buttons[++applied % INPUT_WINDOW];
+        }
+
+        void reset() {
+            started = false;
+            newest = -1;
+            applied = -1;
+        }
+    }
+
+    Room(String id, SpectatorFanout fanout) {
+        this(id, fanout, false);
+    }
+
+    Room(String id, SpectatorFanout fanout, boolean simulated) {
+        this.id = id;
+        this.fanout = fanout;
+        this.simulation = simulated ? new MatchSimulation() : null;
+    }
+
+    boolean isSimulated() {
+        return simulation != null;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    void add(ClientConnection client, int seat) {
+        members.add(client);
+        seats.put(client, seat);
+    }
+
+    // A new member: catch it up first, then relay to it live. In a simulated room its
+    // inputs start over, since a new client numbers its ticks from its own start.
+    synchronized void join(ClientConnection client, int seat) {
+        sendCatchUp(client, seat, 0);
+        add(client, seat);
+        if (simulation != null && (seat == 1 || seat == 2)) {
+            tickTasks.offer(() -> seatInputs[seat - 1].reset());
+        }
+    }
+
+    void remove(ClientConnection client) {
+        members.remove(client);
+        seats.remove(client);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    // Nobody playing, holding a seat or watching: the room can be removed
+    boolean isAbandoned() {
+        return members.isEmpty() && away.isEmpty() && spectators.isEmpty();
+    }
+
+    // Frames already built leave the new spectator out, and the catch-up leaves out the
+    // events still waiting for the next frame, so nothing arrives twice. With a broadcast
+    // delay there is no catch-up, since it would show the present; the spectator's first
+    // frame arrives once the delay has passed.
+    synchronized void addSpectator(ClientConnection client) {
+        if (fanout.getDelayMillis() == 0) {
+            sendCatchUp(client, -1, spectatorEvents.size());
+        }
+        spectators.add(client);
+    }
+
+    void removeSpectator(ClientConnection client) {
+        spectators.remove(client);
+    }
+
+    List<ClientConnection> getSpectators() {
+        return spectators;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    List<ClientConnection> getMembers() {
+        return members;
+    }
+
+    void relay(GameMessage.MessageType type, int playerId, ByteBuffer frame, ClientConnection sender) {
+        for (ClientConnection client : members) {
+            if (client != sender) {
+                client.sendFrame(type, playerId, frame);
+            }
+        }
+    }
+
+    synchronized void relayEvent(GameMessage.MessageType type, int playerId, ByteBuffer frame,
+                                 ClientConnection sender) {
+        RoomSnapshot.Entry entry = new RoomSnapshot.Entry(seatOf(sender), type, playerId, frame);
+        if (frozen) {
+            if (frozenEvents.size() < MAX_FROZEN_EVENTS) {
+                frozenEvents.offer(entry);
+            }
+            return;
+        }
+        if (type == GameMessage.MessageType.GAME_STATE) {
+            // Every spectator frame carries the latest score anyway
+            lastGameState = entry;
+        } else if (!spectators.isEmpty() && spectatorEvents.size() < MAX_SPECTATOR_EVENTS) {
+            spectatorEvents.offer(entry);
+        }
+        log(entry);
+        for (Away dropped : away.values()) {
+            if (dropped.seat == entry.seat) {
+                continue;
+            }
+            if (dropped.missed.size() < MAX_MISSED_EVENTS) {
+                dropped.missed.offer(entry);
+            } else {
+                dropped.overflowed = true;
+            }
+        }
+        relay(type, playerId, frame, sender);
+    }
+
+    // Relays the position right away unless positions are being shed or the room is
+    // frozen, and leaves it to the worker to track either way
+    void queuePosition(int playerId, ByteBuffer frame, ClientConnection sender) {
+        PendingPosition position = new PendingPosition(playerId, frame, sender);
+        if (relayPositionsOnArrival && !frozen && seats.containsKey(sender)) {
+            relay(GameMessage.MessageType.PLAYER_POSITION, playerId, frame, sender);
+            position.sent = true;
+        }
+        pendingPositions.offer(position);
+    }
+
+    // Simulated rooms: decoded and applied by the worker. Only the two seats play.
+    void queueInput(ByteBuffer frame, ClientConnection sender) {
+        int seat = seatOf(sender);
+        if (seat == 1 || seat == 2) {
+            pendingInputs.offer(new PendingInput(seat, frame));
+        }
+    }
+
+    // Simulated rooms: a player pressed restart, which sends a 0-0 GAME_STATE. Only
+    // honored once the match is over.
+    void requestRestart(ByteBuffer frame) {
+        tickTasks.offer(() -> {
+            try {
+                int[] scores = (int[]) MessageCodec.decodeFrame(frame).getData();
+                if (scores[0] == 0 && scores[1] == 0 && simulation.isOver()) {
+                    simulation.reset();
+                }
+            } catch (ProtocolException e) {
+                // Ignored like any malformed frame
+            }
+        });
+    }
+
+    void tick(long now, long tickNumber, RoomScheduler.LoadLevel level) {
+        relayPositionsOnArrival = level.relaysPositionsOnArrival();
+        PendingPosition position;
+        while ((position = pendingPositions.poll()) != null) {
+            latestPositions.put(position.playerId, position);
+            if (position.sent) {
+                relayedPositions.add(position);
+            }
+        }
+        Runnable task;
+        while ((task = tickTasks.poll()) != null) {
+            task.run();
+        }
+        CompletableFuture<RoomSnapshot> request = snapshotRequest;
+        if (request != null) {
+            snapshotRequest = null;
+            request.complete(snapshot());
+        }
+        if (frozen) {
+            // Unsent positions go out with the migration snapshot
+            return;
+        }
+        if (simulation != null) {
+            simulate(now, tickNumber, level);
+        }
+        if (level.sendsPlayerPositions(tickNumber)) {
+            // Positions still unsent were held back by load shedding; otherwise they
+            // go out on a later tick
+            Iterator<PendingPosition> it = latestPositions.values().iterator();
+            while (it.hasNext()) {
+                PendingPosition latest = it.next();
+                if (!seats.containsKey(latest.sender)) {
+                    it.remove();
+                    forgetPosition(latest.playerId);
+                } else if (!latest.sent) {
+                    relay(GameMessage.MessageType.PLAYER_POSITION, latest.playerId, latest.frame, latest.sender);
+                    latest.sent = true;
+                    relayedPositions.add(latest);
+                }
+            }
+        }
+        trackPositions();
+        if (!spectators.isEmpty() && level.sendsSpectatorFrame(tickNumber)) {
+            publishSpectatorFrame(now);
+        }
+    }
+
+    // Applies the inputs that arrived, advances the match by the periods elapsed since
+    // the last tick and sends the players the result
+    private void simulate(long now, long tickNumber, RoomScheduler.LoadLevel level) {
+        PendingInput input;
+        while ((input = pendingInputs.poll()) != null) {
+            try {
+                seatInputs[input.seat - 1].receive((InputFrame) MessageCodec.decodeFrame(input.frame).getData());
+            } catch (ProtocolException e) {
+                // Dropped like any malformed frame
+            }
+        }
+        long steps;
+        if (!stepClockStarted) {
+            stepClockStarted = true;
+            steps = 1;
+            nextStepNanos = now + RoomScheduler.TICK_NANOS;
+        } else {
+            // Half a period of slack, so a worker tick that runs a little early still counts
+            long behind = now - nextStepNanos + RoomScheduler.TICK_NANOS / 2;
+            steps = behind < 0 ? 0 : behind / RoomScheduler.TICK_NANOS + 1;
+            if (steps > MAX_STEPS_PER_TICK) {
+                steps = MAX_STEPS_PER_TICK;
+                nextStepNanos = now + RoomScheduler.TICK_NANOS;
+            } else {
+                nextStepNanos += steps * RoomScheduler.TICK_NANOS;
+            }
+        }
+        for (long i = 0; i < steps; i++) {
+            for (int seat = 1; seat <= 2; seat++) {
+                SeatInputs inputs = seatInputs[seat - 1];
+                for (int due = inputs.due(); due > 0; due--) {
+                    simulation.stepPlayer(seat, inputs.next());
+                }
+            }
+            simulation.finishTick();
+        }
+        if (level.sendsPlayerPositions(tickNumber)) {
+            ByteBuffer frame = MessageCodec.encodeFrame(new GameMessage(GameMessage.MessageType.MATCH_SNAPSHOT,
+                    new MatchSnapshot(simulation, seatInputs[0].applied, seatInputs[1].applied), 0));
+            matchState = new RoomSnapshot.Entry(0, GameMessage.MessageType.MATCH_SNAPSHOT, 0, frame);
+            relay(GameMessage.MessageType.MATCH_SNAPSHOT, 0, frame, null);
+        }
+    }
+
+    // Decodes the positions relayed since the last tick and logs the ones that moved, and
+    // takes a new keyframe when it is due. A delta whose baseline predates the room cannot
+    // be decoded; the sender's next keyframe, at most a second away, fills the position in.
+    private synchronized void trackPositions() {
+        for (PendingPosition latest : relayedPositions) {
+            if (!seats.containsKey(latest.sender)) {
+                // Left meanwhile; its position was forgotten with it
+                continue;
+            }
+            PositionSnapshot snapshot;
+            try {
+                snapshot = (PositionSnapshot) MessageCodec.decodeFrame(latest.frame).getData();
+            } catch (ProtocolException e) {
+                // Already relayed as-is; joiners and spectators just skip it
+                continue;
+            }
+            double[] decoded = decoders.computeIfAbsent(latest.playerId, p -> new SnapshotDecoder()).decode(snapshot);
+            if (decoded == null) {
+                continue;
+            }
+            TrackedPosition position = positions.computeIfAbsent(latest.playerId, p -> new TrackedPosition());
+            position.seat = seatOf(latest.sender);
+            position.seq = snapshot.getSeq();
+            position.x = PositionSnapshot.quantize(decoded[0]);
+            position.y = PositionSnapshot.quantize(decoded[1]);
+            position.attacking = decoded[2] != 0;
+            if (deltaLog.size() >= MAX_LOG_ENTRIES) {
+                takeKeyframe();
+            } else {
+                log(positionEntry(latest.playerId, position, position.loggedSeq));
+            }
+        }
+        relayedPositions.clear();
+        if (++ticksSinceKeyframe >= KEYFRAME_INTERVAL_TICKS) {
+            takeKeyframe();
+        }
+    }
+
+    private synchronized void forgetPosition(int playerId) {
+        positions.remove(playerId);
+        decoders.remove(playerId);
+    }
+
+    // Lock held
+    private void log(RoomSnapshot.Entry entry) {
+        if (deltaLog.size() >= MAX_LOG_ENTRIES) {
+            takeKeyframe();
+        }
+        deltaLog.add(entry);
+    }
+
+    // Lock held
+    private void takeKeyframe() {
+        keyframe.clear();
+        RoomSnapshot.Entry gameState = lastGameState;
+        if (gameState != null) {
+            keyframe.add(gameState);
+        }
+        for (Map.Entry<Integer, TrackedPosition> player : positions.entrySet()) {
+            keyframe.add(positionEntry(player.getKey(), player.getValue(), PositionSnapshot.NO_SEQ));
+        }
+        deltaLog.clear();
+        ticksSinceKeyframe = 0;
+    }
+
+    // Absolute against NO_SEQ, otherwise a delta against the given seq. The ack is left
+    // out: it refers to the sender's opponent, who may not be the one receiving this.
+    // Lock held; afterwards the position counts as logged.
+    private RoomSnapshot.Entry positionEntry(int playerId, TrackedPosition position, int baselineSeq) {
+        PositionSnapshot snapshot = baselineSeq == PositionSnapshot.NO_SEQ
+                ? new PositionSnapshot(position.seq, PositionSnapshot.NO_SEQ, PositionSnapshot.NO_SEQ,
+                        position.x, position.y, position.attacking)
+                : new PositionSnapshot(position.seq, PositionSnapshot.NO_SEQ, baselineSeq,
+                        position.x - position.loggedX, position.y - position.loggedY, position.attacking);
+        position.loggedSeq = position.seq;
+        position.loggedX = position.x;
+        position.loggedY = position.y;
+        return new RoomSnapshot.Entry(position.seat, GameMessage.MessageType.PLAYER_POSITION, playerId,
+                MessageCodec.encodeFrame(new GameMessage(GameMessage.MessageType.PLAYER_POSITION, snapshot, playerId)));
+    }
+
+    // Keyframe then log, leaving out what came from the joiner's own seat and the last
+    // skipEvents events (those a spectator will get in its next frame). Lock held.
+    private void sendCatchUp(ClientConnection client, int seat, int skipEvents) {
+        int events = 0;
+        for (RoomSnapshot.Entry entry : deltaLog) {
+            if (isSpectatorEvent(entry)) {
+                events++;
+            }
+        }
+        int eventsToSend = events - skipEvents;
+        List<RoomSnapshot.Entry> entries = new ArrayList<>();
+        for (RoomSnapshot.Entry entry : keyframe) {
+            if (entry.seat != seat) {
+                entries.add(entry);
+            }
+        }
+        for (RoomSnapshot.Entry entry : deltaLog) {
+            if (isSpectatorEvent(entry) && eventsToSend-- <= 0) {
+                continue;
+            }
+            if (entry.seat != seat) {
+                entries.add(entry);
+            }
+        }
+        RoomSnapshot.Entry state = matchState;
+        if (state != null) {
+            entries.add(state);
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (ByteBuffer frame : RoomSnapshot.encodeChunks(GameMessage.MessageType.CATCH_UP, 0, id,
+                members.size(), entries, CATCH_UP_CHUNK_BYTES)) {
+            client.sendFrame(GameMessage.MessageType.CATCH_UP, 0, frame);
+        }
+    }
+
+    // Events that go through spectatorEvents; positions and the score are sent as state
+    private static boolean isSpectatorEvent(RoomSnapshot.Entry entry) {
+        return entry.type != GameMessage.MessageType.PLAYER_POSITION
+                && entry.type != GameMessage.MessageType.GAME_STATE;
+    }
+
+    // Latest score, every player's position as a keyframe, then the events since the
+    // last frame. Encoded once and shared by the spectators watching at this moment.
+    private synchronized void publishSpectatorFrame(long now) {
+        List<RoomSnapshot.Entry> entries = new ArrayList<>();
+        RoomSnapshot.Entry gameState = lastGameState;
+        if (gameState != null) {
+            entries.add(gameState);
+        }
+        RoomSnapshot.Entry state = matchState;
+        if (state != null) {
+            entries.add(state);
+        }
+        for (Map.Entry<Integer, TrackedPosition> player : positions.entrySet()) {
+            TrackedPosition position = player.getValue();
+            PositionSnapshot snapshot = new PositionSnapshot(position.seq, PositionSnapshot.NO_SEQ,
+                    PositionSnapshot.NO_SEQ, position.x, position.y, position.attacking);
+            entries.add(new RoomSnapshot.Entry(position.seat, GameMessage.MessageType.PLAYER_POSITION,
+                    player.getKey(), MessageCodec.encodeFrame(new GameMessage(
+                            GameMessage.MessageType.PLAYER_POSITION, snapshot, player.getKey()))));
+        }
+        RoomSnapshot.Entry event;
+        for (int i = 0; i < MAX_EVENTS_PER_SPECTATOR_FRAME && (event = spectatorEvents.poll()) != null; i++) {
+            entries.add(event);
+        }
+        ByteBuffer frame = MessageCodec.encodeFrame(new GameMessage(GameMessage.MessageType.SPECTATOR_FRAME,
+                new RoomSnapshot(id, members.size(), entries), 0));
+        fanout.publish(spectators.toArray(new ClientConnection[0]), frame, now);
+    }
+
+    // Stops relaying and asks the owning worker for a snapshot on its next tick,
+    // so the tick state is still only read by that worker
+    CompletableFuture<RoomSnapshot> freezeAndSnapshot() {
+        CompletableFuture<RoomSnapshot> request = new CompletableFuture<>();
+        frozen = true;
+        snapshotRequest = request;
+        return request;
+    }
+
+    // Migration failed: relay the events that were held back and carry on here.
+    // Positions are still in the tick state and go out on the next tick.
+    void resume(RoomSnapshot snapshot) {
+        frozen = false;
+        if (snapshot != null) {
+            for (RoomSnapshot.Entry entry : snapshot.getEntries()) {
+                if (entry.type != GameMessage.MessageType.PLAYER_POSITION && entry != lastGameState
+                        && entry.type != GameMessage.MessageType.MATCH_SNAPSHOT) {
+                    replay(entry, null);
+                }
+            }
+        }
+    }
+
+    private RoomSnapshot snapshot() {
+        List<RoomSnapshot.Entry> entries = new ArrayList<>();
+        RoomSnapshot.Entry gameState = lastGameState;
+        if (gameState != null) {
+            entries.add(gameState);
+        }
+        RoomSnapshot.Entry state = matchState;
+        if (state != null) {
+            entries.add(state);
+        }
+        for (PendingPosition latest : latestPositions.values()) {
+            entries.add(new RoomSnapshot.Entry(seatOf(latest.sender), GameMessage.MessageType.PLAYER_POSITION,
+                    latest.playerId, latest.frame));
+        }
+        RoomSnapshot.Entry event;
+        while ((event = frozenEvents.poll()) != null) {
+            entries.add(event);
+        }
+        return new RoomSnapshot(id, members.size(), entries);
+    }
+
+    // A simulated room carries on from the match state the previous server sent
+    void importSnapshot(RoomSnapshot snapshot, long now) {
+        importedAtNanos = now;
+        imported = snapshot;
+        if (simulation == null) {
+            return;
+        }
+        for (RoomSnapshot.Entry entry : snapshot.getEntries()) {
+            if (entry.type == GameMessage.MessageType.MATCH_SNAPSHOT) {
+                tickTasks.offer(() -> {
+                    try {
+                        ((MatchSnapshot) MessageCodec.decodeFrame(entry.frame).getData()).applyTo(simulation);
+                    } catch (ProtocolException e) {
+                        System.out.println("Could not restore the match state of room " + id);
+                    }
+                });
+            }
+        }
+    }
+
+    // Sends a returning player what the others did before the move, and returns the
+    // pause in nanoseconds once every player from the snapshot is back, otherwise -1
+    long onRejoin(ClientConnection client, long now) {
+        RoomSnapshot snapshot = imported;
+        if (snapshot == null) {
+            return -1;
+        }
+        if (replayedSeats.add(seatOf(client))) {
+            for (RoomSnapshot.Entry entry : snapshot.getEntries()) {
+                replay(entry, client);
+            }
+        }
+        if (members.size() < snapshot.getMemberCount()) {
+            return -1;
+        }
+        imported = null;
+        return now - importedAtNanos;
+    }
+
+    boolean isAwaitingMigration() {
+        return imported != null;
+    }
+
+    // A member dropped without leaving: keep its seat and the events it misses
+    // until it resumes or the session expires
+    synchronized Away detach(ClientConnection client, long token) {
+        int seat = seatOf(client);
+        remove(client);
+        Away dropped = new Away(seat);
+        away.put(token, dropped);
+        return dropped;
+    }
+
+    // Returns false if the session already resumed or expired
+    boolean expire(long token, Away dropped) {
+        return !dropped.resuming && away.remove(token, dropped);
+    }
+
+    // Puts a returning player back in its seat on the next tick after sending it the
+    // last score, everyone else's latest position and the events it missed, as RESYNC
+    // frames of datagram size. Returns false if the player has been away too long (or
+    // never was) and must rejoin instead.
+    boolean resume(ClientConnection client, long token, int seat) {
+        Away dropped = away.get(token);
+        if (dropped == null || dropped.overflowed) {
+            return false;
+        }
+        dropped.resuming = true;
+        tickTasks.offer(() -> {
+            // Positions are read here on the worker; the lock orders the RESYNC
+            // against events relayed by I/O threads meanwhile
+            synchronized (this) {
+                if (!away.remove(token, dropped)) {
+                    // Dropped again before this tick; a newer record holds the seat
+                    return;
+                }
+                List<RoomSnapshot.Entry> entries = new ArrayList<>();
+                RoomSnapshot.Entry gameState = lastGameState;
+                if (gameState != null && gameState.seat != seat && !dropped.missed.contains(gameState)) {
+                    entries.add(gameState);
+                }
+                for (PendingPosition latest : latestPositions.values()) {
+                    int from = seatOf(latest.sender);
+                    if (from != seat && seats.containsKey(latest.sender)) {
+                        entries.add(new RoomSnapshot.Entry(from, GameMessage.MessageType.PLAYER_POSITION,
+                                latest.playerId, latest.frame));
+                    }
+                }
+                entries.addAll(dropped.missed);
+                // Sent before the seat is taken back, so nothing relayed can overtake it
+                try {
+                    for (ByteBuffer frame : RoomSnapshot.encodeChunks(GameMessage.MessageType.RESYNC, 1, id,
+                            members.size() + 1, entries, CATCH_UP_CHUNK_BYTES)) {
+                        client.sendFrame(GameMessage.MessageType.RESYNC, 1, frame);
+                    }
+                } catch (RuntimeException e) {
+                    // Keep holding the seat until the session expires; the client rejoins
+                    System.out.println("Could not resync a player in room " + id + ": " + e.getMessage());
+                    dropped.resuming = false;
+                    away.put(token, dropped);
+                    client.sendMessage(new GameMessage(GameMessage.MessageType.RESYNC,
+                            new RoomSnapshot("", 0, new ArrayList<>()), 0));
+                    return;
+                }
+                add(client, seat);
+            }
+        });
+        return true;
+    }
+
+    private void replay(RoomSnapshot.Entry entry, ClientConnection to) {
+        for (Map.Entry<ClientConnection, Integer> member : seats.entrySet()) {
+            if (member.getValue() != entry.seat && (to == null || member.getKey() == to)) {
+                member.getKey().sendFrame(entry.type, entry.playerId, entry.frame);
+            }
+        }
+    }
+
+    private int seatOf(ClientConnection client) {
+        Integer seat = client != null ? seats.get(client) : null;
+        return seat != null ? seat : 0;
+    }
+
+    // Smoothed tick time, used by the scheduler to balance rooms between workers
+    long getTickCost() {
+        return tickCost;
+    }
+
+    long recordTickCost(long nanos) {
+        tickCost += (nanos - tickCost) / 8;
+        return tickCost;
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
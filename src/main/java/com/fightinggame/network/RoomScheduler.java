@@ -0,0 +1,281 @@
+// RoomScheduler.java
+package com.fightinggame.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs every room's tick on a fixed pool of workers, one per core. A room belongs to
+// exactly one worker at a time and only that worker touches its tick state, so rooms
+// need no locks. Rooms are handed between workers through the workers' mailboxes.
+//
+// Each worker has a time budget per tick. Time spent ticking plus time the thread woke
+// up late both count, so a host short on CPU shows up even when the rooms are cheap.
+// A worker that stays over budget sheds load one LoadLevel at a time, the same for
+// all its rooms, so every match slows down a little instead of some freezing.
+class RoomScheduler {
+    static final int TICK_RATE = 60;
+    static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1) / TICK_RATE;
+    // Spectators get a frame every this many ticks, 10 Hz
+    static final int SPECTATOR_INTERVAL = 6;
+
+    private static final long REBALANCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    // Only move a room when the busiest worker spends noticeably more time per tick
+    private static final long REBALANCE_MIN_GAP_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final double REBALANCE_RATIO = 1.5;
+    // Share of the tick period a worker may use before it degrades, and the share it
+    // must stay under before it restores a step
+    private static final int BUDGET_PERCENT = 80;
+    private static final int RESTORE_PERCENT = 35;
+    private static final int DEGRADE_AFTER_TICKS = 15;
+    private static final int RESTORE_AFTER_TICKS = 120;
+
+    // Steps taken, in order, while a worker is over budget, undone in reverse order
+    enum LoadLevel {
+        NORMAL,
+        SPECTATORS_REDUCED, // spectator snapshots at half rate
+        PLAYERS_REDUCED,    // player positions at half rate too
+        TICKS_COALESCED;    // rooms tick every other period, with twice the time each
+
+        boolean sendsPlayerPositions(long tick) {
+            return relaysPositionsOnArrival() || (tick & 1) == 0;
+        }
+
+        // Below PLAYERS_REDUCED a room relays positions as they arrive, not on its tick
+        boolean relaysPositionsOnArrival() {
+            return ordinal() < PLAYERS_REDUCED.ordinal();
+        }
+
+        boolean sendsSpectatorFrame(long tick) {
+            int interval = ordinal() < SPECTATORS_REDUCED.ordinal() ? SPECTATOR_INTERVAL : 2 * SPECTATOR_INTERVAL;
+            return tick % interval == 0;
+        }
+    }
+
+    private final Worker[] workers;
+    private volatile boolean running;
+
+    RoomScheduler(int workerCount) {
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    void start() {
+        running = true;
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    void stop() {
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    // New rooms have no cost history yet, so they go to the worker with the fewest rooms
+    void schedule(Room room) {
+        Worker target = workers[0];
+        for (Worker worker : workers) {
+            if (worker.roomCount.get() < target.roomCount.get()) {
+                target = worker;
+            }
+        }
+        target.roomCount.incrementAndGet();
+        Worker chosen = target;
+        chosen.post(() -> chosen.rooms.add(room));
+    }
+
+    // Closed rooms are dropped by their worker on its next tick
+    void unschedule(Room room) {
+        room.close();
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Worker worker : workers) {
+            sb.append(String.format("worker %d: %d rooms, avg %.2f ms, max %.2f ms, overruns %d/%d, skipped %d, "
+                            + "%s (%d%% of tick period)%n",
+                    worker.index, worker.roomCount.get(),
+                    worker.avgTickNanos / 1_000_000.0, worker.maxTickNanos / 1_000_000.0,
+                    worker.overruns, worker.ticks, worker.skippedTicks, worker.level, worker.utilization));
+        }
+        return sb.toString();
+    }
+
+    // Called by worker 0 once a second: if one worker is much busier than another,
+    // ask it to hand its best-fitting room to the idlest worker. A worker with a
+    // single room is skipped, since moving that room would only move the imbalance.
+    private void rebalance() {
+        Worker busiest = null;
+        Worker idlest = workers[0];
+        for (Worker worker : workers) {
+            if (worker.roomCount.get() > 1 && (busiest == null || worker.load > busiest.load)) busiest = worker;
+            if (worker.load < idlest.load) idlest = worker;
+        }
+        if (busiest == null || busiest == idlest) {
+            return;
+        }
+        long gap = busiest.load - idlest.load;
+        if (gap < REBALANCE_MIN_GAP_NANOS || busiest.load < idlest.load * REBALANCE_RATIO) {
+            return;
+        }
+        Worker from = busiest;
+        Worker to = idlest;
+        from.post(() -> from.migrateOne(to, gap / 2));
+    }
+
+    private class Worker implements Runnable {
+        private final int index;
+        private final Thread thread;
+        private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+        // Owned by this worker's thread only
+        private final List<Room> rooms = new ArrayList<>();
+
+        // Also changed by threads scheduling new rooms and by migrations
+        private final AtomicInteger roomCount = new AtomicInteger();
+        // Published for rebalancing and reporting; each has a single writer
+        private volatile long load;
+        private volatile long avgTickNanos;
+        private volatile long maxTickNanos;
+        private volatile long ticks;
+        private volatile long overruns;
+        private volatile long skippedTicks;
+        private volatile LoadLevel level = LoadLevel.NORMAL;
+        // Smoothed share of the tick period used, in percent
+        private volatile long utilization;
+        private int overBudgetTicks;
+        private int underBudgetTicks;
+
+        Worker(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "game-room-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void post(Runnable task) {
+            mailbox.offer(task);
+        }
+
+        // Moves the room whose cost is closest to the target to another worker
+        private void migrateOne(Worker to, long targetCost) {
+            Room best = null;
+            for (Room room : rooms) {
+                if (best == null || Math.abs(room.getTickCost() - targetCost) < Math.abs(best.getTickCost() - targetCost)) {
+                    best = room;
+                }
+            }
+            if (best == null || rooms.size() < 2) {
+                return;
+            }
+            Room moved = best;
+            rooms.remove(moved);
+            roomCount.decrementAndGet();
+            to.roomCount.incrementAndGet();
+            to.post(() -> to.rooms.add(moved));
+        }
+
+        // Called once per tick with the share of the period that tick used
+        private void updateLoadLevel(long percent) {
+            utilization += (percent - utilization) / 8;
+            overBudgetTicks = utilization > BUDGET_PERCENT ? overBudgetTicks + 1 : 0;
+            underBudgetTicks = utilization < RESTORE_PERCENT ? underBudgetTicks + 1 : 0;
+            LoadLevel[] levels = LoadLevel.values();
+            LoadLevel next = level;
+            if (overBudgetTicks >= DEGRADE_AFTER_TICKS && level.ordinal() < levels.length - 1) {
+                next = levels[level.ordinal() + 1];
+            } else if (underBudgetTicks >= RESTORE_AFTER_TICKS && level != LoadLevel.NORMAL) {
+                next = levels[level.ordinal() - 1];
+            }
+            if (next != level) {
+                System.out.println("Room worker " + index + (next.ordinal() > level.ordinal() ? " degraded" : " restored")
+                        + " to " + next + " (" + rooms.size() + " rooms, using " + utilization + "% of the tick period)");
+                level = next;
+                overBudgetTicks = 0;
+                underBudgetTicks = 0;
+            }
+        }
+
+        @Override
+        public void run() {
+            long nextTick = System.nanoTime();
+            long nextRebalance = nextTick + REBALANCE_INTERVAL_NANOS;
+            long nextReport = nextTick + REPORT_INTERVAL_NANOS;
+            long reportedOverruns = 0;
+            while (running) {
+                long late = Math.max(0, System.nanoTime() - nextTick);
+                Runnable task;
+                while ((task = mailbox.poll()) != null) {
+                    task.run();
+                }
+
+                LoadLevel tickLevel = level;
+                long start = System.nanoTime();
+                long roomLoad = 0;
+                for (int i = rooms.size() - 1; i >= 0; i--) {
+                    Room room = rooms.get(i);
+                    if (room.isClosed()) {
+                        rooms.remove(i);
+                        roomCount.decrementAndGet();
+                        continue;
+                    }
+                    long roomStart = System.nanoTime();
+                    try {
+                        room.tick(roomStart, ticks, tickLevel);
+                    } catch (Exception e) {
+                        System.out.println("Error ticking room " + room.getId() + ": " + e.getMessage());
+                    }
+                    roomLoad += room.recordTickCost(System.nanoTime() - roomStart);
+                }
+                long end = System.nanoTime();
+                long elapsed = end - start;
+
+                ticks++;
+                load = roomLoad;
+                avgTickNanos += (elapsed - avgTickNanos) / 8;
+                if (elapsed > maxTickNanos) {
+                    maxTickNanos = elapsed;
+                }
+                if (elapsed > TICK_NANOS) {
+                    overruns++;
+                }
+                long period = tickLevel == LoadLevel.TICKS_COALESCED ? 2 * TICK_NANOS : TICK_NANOS;
+                updateLoadLevel((elapsed + late) * 100 / period);
+
+                if (index == 0 && end >= nextRebalance) {
+                    rebalance();
+                    nextRebalance = end + REBALANCE_INTERVAL_NANOS;
+                }
+                if (end >= nextReport) {
+                    if (overruns > reportedOverruns) {
+                        System.out.println("Room worker " + index + " overran " + (overruns - reportedOverruns)
+                                + " ticks in the last minute (max " + maxTickNanos / 1_000_000.0 + " ms)");
+                        reportedOverruns = overruns;
+                    }
+                    nextReport = end + REPORT_INTERVAL_NANOS;
+                }
+
+                nextTick += period;
+                long now = System.nanoTime();
+                if (now - nextTick > period) {
+                    // Too far behind to catch up; skip the missed ticks instead of bursting
+                    long missed = (now - nextTick) / period;
+                    skippedTicks += missed;
+                    nextTick += missed * period;
+                }
+                long wait = nextTick - now;
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }
+    }
+}
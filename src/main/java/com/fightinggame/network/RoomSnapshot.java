@@ -0,0 +1,112 @@
+// RoomSnapshot.java
+package com.fightinggame.network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Payload of ROOM_TRANSFER: what a server knows about a room, streamed to another
+// server when the room is migrated. RESYNC uses the same layout to bring a resumed
+// player up to date. Each entry is a frame (length prefix included)
+// tagged with the seat of the player who sent it, so the target can replay it to
+// the other players when they reconnect.
+//
+// Layout: string room id, varint member count, varint entry count, then per entry
+// varint seat followed by the frame.
+class RoomSnapshot {
+    private final String roomId;
+    private final int memberCount;
+    private final List<Entry> entries;
+
+    static class Entry {
+        final int seat;
+        final GameMessage.MessageType type;
+        final int playerId;
+        final ByteBuffer frame;
+
+        Entry(int seat, GameMessage.MessageType type, int playerId, ByteBuffer frame) {
+            this.seat = seat;
+            this.type = type;
+            this.playerId = playerId;
+            this.frame = frame;
+        }
+    }
+
+    RoomSnapshot(String roomId, int memberCount, List<Entry> entries) {
+        this.roomId = roomId;
+        this.memberCount = memberCount;
+        this.entries = entries;
+    }
+
+    String getRoomId() {
+        return roomId;
+    }
+
+    int getMemberCount() {
+        return memberCount;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    // Spreads the entries over as few frames of the given type as keep each one under
+    // maxBytes, e.g. so every frame fits one UDP datagram. An entry that is too big on
+    // its own still gets a frame, and no entries still make one empty frame.
+    static List<ByteBuffer> encodeChunks(GameMessage.MessageType type, int playerId, String roomId,
+                                         int memberCount, List<Entry> entries, int maxBytes) {
+        // Length prefix, header and counts, generously
+        int overhead = 32 + roomId.length() * 3;
+        List<ByteBuffer> frames = new ArrayList<>();
+        List<Entry> chunk = new ArrayList<>();
+        int size = overhead;
+        for (Entry entry : entries) {
+            int entrySize = MessageCodec.varIntSize(entry.seat) + entry.frame.remaining();
+            if (!chunk.isEmpty() && size + entrySize > maxBytes) {
+                frames.add(MessageCodec.encodeFrame(new GameMessage(type, new RoomSnapshot(roomId, memberCount, chunk), playerId)));
+                chunk = new ArrayList<>();
+                size = overhead;
+            }
+            chunk.add(entry);
+            size += entrySize;
+        }
+        if (!chunk.isEmpty() || frames.isEmpty()) {
+            frames.add(MessageCodec.encodeFrame(new GameMessage(type, new RoomSnapshot(roomId, memberCount, chunk), playerId)));
+        }
+        return frames;
+    }
+
+    void write(ByteBuffer buf) {
+        MessageCodec.putString(buf, roomId);
+        MessageCodec.putVarInt(buf, memberCount);
+        MessageCodec.putVarInt(buf, entries.size());
+        for (Entry entry : entries) {
+            MessageCodec.putVarInt(buf, entry.seat);
+            buf.put(entry.frame.duplicate());
+        }
+    }
+
+    static RoomSnapshot read(ByteBuffer buf) throws ProtocolException {
+        String roomId = MessageCodec.getString(buf);
+        int memberCount = MessageCodec.getVarInt(buf);
+        int count = MessageCodec.getVarInt(buf);
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int seat = MessageCodec.getVarInt(buf);
+            int start = buf.position();
+            int length = MessageCodec.readFrameLength(buf);
+            if (length < 0 || buf.remaining() < length) {
+                throw new ProtocolException("Truncated room snapshot");
+            }
+            int end = buf.position() + length;
+            ByteBuffer frame = ByteBuffer.allocate(end - start);
+            ByteBuffer view = buf.duplicate();
+            view.position(start).limit(end);
+            frame.put(view).flip();
+            buf.position(end);
+            entries.add(new Entry(seat, MessageCodec.peekType(frame), MessageCodec.peekPlayerId(frame), frame));
+        }
+        return new RoomSnapshot(roomId, memberCount, entries);
+    }
+}
@@ -0,0 +1,59 @@
+// RttProbe.java
+package com.fightinggame.network;
+
+import java.util.concurrent.TimeUnit;
+
+// Measures round-trip time over one path by sending a PING now and then and
+// timing the PONG the peer echoes back. Also used by Heartbeat for the direct link.
+public class RttProbe {
+    private static final long PING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private long lastPingNanos;
+    // Written by the thread that receives the echoes, read by anyone
+    private volatile double smoothedRttMillis = -1;
+    private volatile double jitterMillis;
+
+    // Returns a PING to send, or null if one was sent recently
+    public GameMessage nextPing(int playerId, long nowNanos) {
+        if (lastPingNanos != 0 && nowNanos - lastPingNanos < PING_INTERVAL_NANOS) {
+            return null;
+        }
+        lastPingNanos = nowNanos;
+        return new GameMessage(GameMessage.MessageType.PING, nowNanos, playerId);
+    }
+
+    public static GameMessage pongFor(GameMessage ping, int playerId) {
+        return new GameMessage(GameMessage.MessageType.PONG, ping.getData(), playerId);
+    }
+
+    public void onPong(GameMessage pong, long nowNanos) {
+        onEcho((Long) pong.getData(), nowNanos);
+    }
+
+    void onEcho(long sentNanos, long nowNanos) {
+        double rtt = (nowNanos - sentNanos) / 1_000_000.0;
+        if (rtt < 0) {
+            return;
+        }
+        if (smoothedRttMillis < 0) {
+            smoothedRttMillis = rtt;
+            jitterMillis = rtt / 2;
+            return;
+        }
+        // Same smoothing TCP uses for SRTT and RTTVAR; jitter is the mean deviation
+        jitterMillis += (Math.abs(rtt - smoothedRttMillis) - jitterMillis) / 4;
+        smoothedRttMillis += (rtt - smoothedRttMillis) / 8;
+    }
+
+    public boolean hasSample() {
+        return smoothedRttMillis >= 0;
+    }
+
+    public double getRttMillis() {
+        return smoothedRttMillis;
+    }
+
+    public double getJitterMillis() {
+        return jitterMillis;
+    }
+}
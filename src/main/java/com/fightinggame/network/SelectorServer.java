@@ -0,0 +1,329 @@
+// SelectorServer.java
+package com.fightinggame.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking server mode: a fixed set of selector loops handles accept, read,
+// frame decode and write readiness for every connection
+class SelectorServer {
+    private static final int WRITE_BATCH = 64;
+    private static final int SLAB_SIZE = 256 * 1024;
+
+    private final GameServer server;
+    private final ServerSocketChannel serverChannel;
+    private final IoLoop[] loops;
+    private int nextLoop = 0;
+
+    SelectorServer(GameServer server, ServerSocketChannel serverChannel, int ioThreads) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(i);
+        }
+    }
+
+    void start() throws IOException {
+        serverChannel.configureBlocking(false);
+        // Loop 0 also owns the listening socket
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    void stop() {
+        for (IoLoop loop : loops) {
+            loop.running = false;
+            try {
+                loop.selector.close();
+            } catch (IOException e) {
+                System.out.println("Error closing selector: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                if (!server.admitConnection()) {
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IoLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                NioConnection connection = new NioConnection(channel, loop);
+                server.addClient(connection);
+                loop.execute(connection::register);
+            }
+        } catch (IOException e) {
+            System.out.println("Error accepting client: " + e.getMessage());
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Connections on this loop with frames queued by this loop's own reads
+        private final ArrayDeque<NioConnection> dirty = new ArrayDeque<>();
+        private ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        private volatile boolean running = true;
+
+        IoLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "game-io-" + index);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        // Relayed frames are carved out of large direct chunks: one copy per incoming
+        // frame no matter how many recipients, and no per-frame direct allocation.
+        // A chunk is released once every frame sliced from it has been written.
+        ByteBuffer copyFrame(ByteBuffer source, int length) {
+            if (slab.remaining() < length) {
+                slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, length));
+            }
+            ByteBuffer frame = slab.slice();
+            frame.limit(length);
+            slab.position(slab.position() + length);
+            ByteBuffer view = source.duplicate();
+            view.limit(view.position() + length);
+            frame.put(view);
+            frame.flip();
+            return frame;
+        }
+
+        void flushDirty() {
+            NioConnection connection;
+            while ((connection = dirty.poll()) != null) {
+                if (connection.key != null && connection.key.isValid()) {
+                    connection.onWritable();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                    flushDirty();
+                }
+            } catch (ClosedSelectorException e) {
+                // server stopped
+            } catch (IOException e) {
+                System.out.println("Selector loop error: " + e.getMessage());
+            }
+        }
+    }
+
+    private class NioConnection implements ClientConnection {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(MessageCodec.MAX_FRAME_SIZE * 2);
+        private final OutboundQueue outbound;
+        private final MessageRateLimiter rateLimiter = server.newRateLimiter();
+        private final Heartbeat heartbeat = new Heartbeat(System.nanoTime());
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+        private int batchIndex;
+        private int batchSize;
+        private SelectionKey key;
+        private volatile boolean running = true;
+
+        NioConnection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.outbound = server.newOutboundQueue();
+        }
+
+        // Runs on the owning loop thread
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                if (!outbound.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                System.out.println("Error registering client: " + e.getMessage());
+                stop();
+            }
+        }
+
+        void onReadable() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    System.out.println("Client disconnected");
+                    stop();
+                    return;
+                }
+                readBuffer.flip();
+                int dispatched = 0;
+                while (true) {
+                    int start = readBuffer.position();
+                    int length = MessageCodec.readFrameLength(readBuffer);
+                    if (length < 0 || readBuffer.remaining() < length) {
+                        readBuffer.position(start);
+                        break;
+                    }
+                    int total = readBuffer.position() - start + length;
+                    readBuffer.position(start);
+                    ByteBuffer frame = loop.copyFrame(readBuffer, total);
+                    readBuffer.position(start + total);
+                    server.onFrame(frame, this);
+                    // Keep a large burst from overrunning recipients before this loop writes
+                    if (++dispatched % WRITE_BATCH == 0) {
+                        loop.flushDirty();
+                    }
+                }
+                readBuffer.compact();
+            } catch (IOException e) {
+                System.out.println("Error handling client: " + e.getMessage());
+                stop();
+            } catch (RuntimeException e) {
+                // A bug tripped by one client's bytes closes that client, not the whole loop
+                System.out.println("Dropping client after unexpected error: " + e);
+                stop();
+            }
+        }
+
+        void onWritable() {
+            try {
+                while (true) {
+                    if (batchIndex == batchSize && !fillBatch()) {
+                        break;
+                    }
+                    // One gathering write per batch instead of one syscall per frame
+                    channel.write(batch, batchIndex, batchSize - batchIndex);
+                    while (batchIndex < batchSize && !batch[batchIndex].hasRemaining()) {
+                        batch[batchIndex++] = null;
+                    }
+                    if (batchIndex < batchSize) {
+                        // Socket buffer full, wait for the next write readiness
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                writeScheduled.set(false);
+                key.interestOps(SelectionKey.OP_READ);
+                // A sender may have queued between the drain and the flag reset
+                if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                System.out.println("Error sending message to client: " + e.getMessage());
+                stop();
+            }
+        }
+
+        private boolean fillBatch() {
+            batchIndex = 0;
+            batchSize = 0;
+            ByteBuffer frame;
+            while (batchSize < batch.length && (frame = outbound.poll()) != null) {
+                batch[batchSize++] = frame;
+            }
+            return batchSize > 0;
+        }
+
+        @Override
+        public void sendFrame(GameMessage.MessageType type, int playerId, ByteBuffer frame) {
+            if (!running) return;
+            // Each recipient needs its own position/limit over the shared bytes
+            if (!outbound.offer(type, playerId, frame.duplicate())) {
+                server.slowClientDisconnected();
+                stop();
+                return;
+            }
+            if (!writeScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            if (Thread.currentThread() == loop.thread) {
+                loop.dirty.add(this);
+            } else {
+                loop.execute(() -> {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void stop() {
+            if (!running) return;
+            running = false;
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing client connection: " + e.getMessage());
+            }
+            outbound.close();
+            server.removeClient(this);
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return outbound.depth();
+        }
+
+        @Override
+        public long getDroppedPositions() {
+            return outbound.droppedPositions();
+        }
+
+        @Override
+        public MessageRateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
+
+        @Override
+        public Heartbeat getHeartbeat() {
+            return heartbeat;
+        }
+    }
+}
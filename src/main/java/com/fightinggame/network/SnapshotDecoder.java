@@ -0,0 +1,45 @@
+// SnapshotDecoder.java
+package com.fightinggame.network;
+
+import java.util.Arrays;
+
+// Rebuilds the remote player's absolute positions from PositionSnapshots and
+// remembers the latest one received so it can be acknowledged.
+public class SnapshotDecoder {
+    private final int[] historySeq = new int[SnapshotEncoder.HISTORY];
+    private final int[] historyX = new int[SnapshotEncoder.HISTORY];
+    private final int[] historyY = new int[SnapshotEncoder.HISTORY];
+    private int lastReceivedSeq = PositionSnapshot.NO_SEQ;
+
+    public SnapshotDecoder() {
+        Arrays.fill(historySeq, PositionSnapshot.NO_SEQ);
+    }
+
+    // Returns {x, y, attacking} in pixels, or null if the baseline is unknown
+    public double[] decode(PositionSnapshot snapshot) {
+        int x = snapshot.getX();
+        int y = snapshot.getY();
+        if (!snapshot.isKeyframe()) {
+            int slot = Math.floorMod(snapshot.getBaselineSeq(), SnapshotEncoder.HISTORY);
+            if (historySeq[slot] != snapshot.getBaselineSeq()) {
+                return null;
+            }
+            x += historyX[slot];
+            y += historyY[slot];
+        }
+        int slot = Math.floorMod(snapshot.getSeq(), SnapshotEncoder.HISTORY);
+        historySeq[slot] = snapshot.getSeq();
+        historyX[slot] = x;
+        historyY[slot] = y;
+        lastReceivedSeq = snapshot.getSeq();
+        return new double[]{
+            PositionSnapshot.dequantize(x),
+            PositionSnapshot.dequantize(y),
+            snapshot.isAttacking() ? 1 : 0
+        };
+    }
+
+    public int getLastReceivedSeq() {
+        return lastReceivedSeq;
+    }
+}
@@ -0,0 +1,78 @@
+// SnapshotEncoder.java
+package com.fightinggame.network;
+
+import java.util.Arrays;
+
+// Builds the local player's position snapshots. Unchanged positions are not sent
+// at all, except for a keyframe every KEYFRAME_INTERVAL ticks, which also keeps
+// acks flowing while both players stand still.
+public class SnapshotEncoder {
+    public static final int KEYFRAME_INTERVAL = 60;
+    static final int HISTORY = 64;
+
+    private final int[] historySeq = new int[HISTORY];
+    private final int[] historyX = new int[HISTORY];
+    private final int[] historyY = new int[HISTORY];
+    private int nextSeq = 0;
+    private int ackedSeq = PositionSnapshot.NO_SEQ;
+    private int lastX;
+    private int lastY;
+    private boolean lastAttacking;
+    private int ticksSinceSend = Integer.MAX_VALUE;
+    private int ticksSinceKeyframe = Integer.MAX_VALUE;
+    private long suppressed;
+
+    public SnapshotEncoder() {
+        Arrays.fill(historySeq, PositionSnapshot.NO_SEQ);
+    }
+
+    // Returns null when nothing needs to be sent this tick
+    public PositionSnapshot encode(double x, double y, boolean attacking, int ackForPeer) {
+        int qx = PositionSnapshot.quantize(x);
+        int qy = PositionSnapshot.quantize(y);
+        boolean keyframeDue = ticksSinceKeyframe >= KEYFRAME_INTERVAL;
+        boolean changed = ticksSinceSend == Integer.MAX_VALUE
+                || qx != lastX || qy != lastY || attacking != lastAttacking;
+        if (!changed && !keyframeDue) {
+            ticksSinceKeyframe++;
+            suppressed++;
+            return null;
+        }
+
+        int seq = nextSeq++;
+        int slot = Math.floorMod(seq, HISTORY);
+        historySeq[slot] = seq;
+        historyX[slot] = qx;
+        historyY[slot] = qy;
+        lastX = qx;
+        lastY = qy;
+        lastAttacking = attacking;
+        ticksSinceSend = 0;
+
+        int baselineSlot = Math.floorMod(ackedSeq, HISTORY);
+        boolean baselineKnown = ackedSeq != PositionSnapshot.NO_SEQ
+                && seq - ackedSeq < HISTORY
+                && historySeq[baselineSlot] == ackedSeq;
+        if (keyframeDue || !baselineKnown) {
+            ticksSinceKeyframe = 0;
+            return new PositionSnapshot(seq, ackForPeer, PositionSnapshot.NO_SEQ, qx, qy, attacking);
+        }
+        ticksSinceKeyframe++;
+        return new PositionSnapshot(seq, ackForPeer, ackedSeq,
+                qx - historyX[baselineSlot], qy - historyY[baselineSlot], attacking);
+    }
+
+    // The peer reports the latest snapshot it received from us
+    public void acknowledge(int seq) {
+        if (seq == PositionSnapshot.NO_SEQ || seq >= nextSeq) {
+            return;
+        }
+        if (ackedSeq == PositionSnapshot.NO_SEQ || seq > ackedSeq) {
+            ackedSeq = seq;
+        }
+    }
+
+    public long getSuppressedCount() {
+        return suppressed;
+    }
+}
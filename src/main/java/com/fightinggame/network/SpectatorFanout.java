@@ -0,0 +1,102 @@
+// SpectatorFanout.java
+package com.fightinggame.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sends spectator frames, so room workers never loop over viewers. A worker hands over
+// one encoded frame per room and spectator tick, with the room's spectators at that
+// moment; this thread sends that same buffer to each of them. With a broadcast delay the frame waits in the queue
+// until it is due, which makes the delay buffer a plain DelayQueue.
+//
+// One thread, so a room's frames always reach its spectators in order.
+class SpectatorFanout {
+    private final DelayQueue<Broadcast> queue = new DelayQueue<>();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private volatile long delayNanos;
+    private volatile boolean running;
+    private Thread thread;
+
+    private static class Broadcast implements Delayed {
+        final ClientConnection[] recipients;
+        final ByteBuffer frame;
+        final long dueNanos;
+
+        Broadcast(ClientConnection[] recipients, ByteBuffer frame, long dueNanos) {
+            this.recipients = recipients;
+            this.frame = frame;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Broadcast) other).dueNanos);
+        }
+    }
+
+    void start() {
+        running = true;
+        thread = ConnectionThreads.newThread("game-spectators", this::sendLoop, false);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        queue.clear();
+    }
+
+    // Applies to frames published from now on
+    void setDelayMillis(long delayMillis) {
+        delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+    }
+
+    long getDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(delayNanos);
+    }
+
+    // Called by the room's worker; never blocks
+    void publish(ClientConnection[] recipients, ByteBuffer frame, long now) {
+        queue.offer(new Broadcast(recipients, frame, now + delayNanos));
+        published.increment();
+    }
+
+    private void sendLoop() {
+        while (running) {
+            Broadcast broadcast;
+            try {
+                broadcast = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (ClientConnection spectator : broadcast.recipients) {
+                spectator.sendFrame(GameMessage.MessageType.SPECTATOR_FRAME, 0, broadcast.frame);
+                sent.increment();
+            }
+        }
+    }
+
+    // Frames waiting for their delay to pass
+    int getBufferedFrames() {
+        return queue.size();
+    }
+
+    long getPublishedFrames() {
+        return published.sum();
+    }
+
+    long getSentFrames() {
+        return sent.sum();
+    }
+}
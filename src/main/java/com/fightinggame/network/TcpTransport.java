@@ -0,0 +1,112 @@
+// TcpTransport.java
+package com.fightinggame.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+class TcpTransport implements ClientTransport {
+    private static final int SEND_BUFFER_SIZE = 8192;
+
+    private final String address;
+    private final int port;
+    private final Consumer<GameMessage> inbox;
+    private final Runnable onClosed;
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private final MessageCodec readCodec = new MessageCodec();
+    private final MessageCodec writeCodec = new MessageCodec();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean connected;
+    private Thread receiveThread;
+
+    TcpTransport(String address, int port, Consumer<GameMessage> inbox, Runnable onClosed) {
+        this.address = address;
+        this.port = port;
+        this.inbox = inbox;
+        this.onClosed = onClosed;
+    }
+
+    // Wraps a socket that was already accepted, e.g. a peer connecting directly to the host
+    TcpTransport(Socket socket, Consumer<GameMessage> inbox, Runnable onClosed) {
+        this(socket.getInetAddress().getHostAddress(), socket.getPort(), inbox, onClosed);
+        this.socket = socket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (socket == null) {
+            socket = new Socket(address, port);
+        }
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream(), SEND_BUFFER_SIZE);
+        in = new BufferedInputStream(socket.getInputStream());
+        connected = true;
+
+        // Start message receiving thread
+        receiveThread = ConnectionThreads.newThread("game-receive", () -> {
+            try {
+                while (connected) {
+                    inbox.accept(readCodec.readFrame(in));
+                }
+            } catch (EOFException e) {
+                System.out.println("服務器關閉了連接");
+            } catch (Exception e) {
+                if (connected) {
+                    System.out.println("接收消息時出錯: " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }, true);
+        receiveThread.start();
+    }
+
+    @Override
+    public void send(GameMessage message) throws IOException {
+        writeLock.lock();
+        try {
+            writeCodec.writeFrame(message, out);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected && socket != null && !socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        boolean wasConnected = connected;
+        connected = false;
+        try {
+            if (out != null) out.close();
+            if (in != null) in.close();
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            System.out.println("Error during disconnect: " + e.getMessage());
+        }
+        if (wasConnected) {
+            onClosed.run();
+        }
+    }
+}
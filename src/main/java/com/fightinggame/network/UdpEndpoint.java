@@ -0,0 +1,206 @@
+// UdpEndpoint.java
+package com.fightinggame.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server side of the UDP transport. One thread receives datagrams for every peer
+// and flushes each peer's DatagramSession once per tick.
+class UdpEndpoint {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private final GameServer server;
+    private final int port;
+    private final long idleTimeoutNanos;
+    private final LongAdder droppedPositions;
+    private final Map<SocketAddress, UdpPeer> peers = new ConcurrentHashMap<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(DatagramSession.MAX_DATAGRAM * 2);
+    private DatagramChannel channel;
+    private Selector selector;
+    private volatile boolean running;
+    private Thread thread;
+
+    UdpEndpoint(GameServer server, int port, long idleTimeoutMs, LongAdder droppedPositions) {
+        this.server = server;
+        this.port = port;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.droppedPositions = droppedPositions;
+    }
+
+    void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        running = true;
+        thread = ConnectionThreads.newThread("game-udp", this::run, false);
+        thread.start();
+        System.out.println("UDP transport listening on port: " + port);
+    }
+
+    void stop() {
+        running = false;
+        for (UdpPeer peer : peers.values()) {
+            peer.stop();
+        }
+        try {
+            if (selector != null) selector.close();
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            System.out.println("Error stopping UDP transport: " + e.getMessage());
+        }
+    }
+
+    private void run() {
+        long nextTick = System.nanoTime() + TICK_NANOS;
+        try {
+            while (running) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(nextTick - System.nanoTime());
+                if (wait > 0) {
+                    selector.select(wait);
+                    selector.selectedKeys().clear();
+                }
+                receiveAll();
+                long now = System.nanoTime();
+                if (now >= nextTick) {
+                    flushAll(now);
+                    nextTick = now + TICK_NANOS;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // server stopped
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("UDP transport error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void receiveAll() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            if (!receiveBuffer.hasRemaining()) {
+                continue;
+            }
+            byte kind = receiveBuffer.get();
+            UdpPeer peer = peers.get(from);
+            if (kind == DatagramSession.KIND_HELLO) {
+                if (peer == null) {
+                    if (!server.admitConnection()) {
+                        DatagramSession.sendControl(channel, from, DatagramSession.KIND_BYE);
+                        continue;
+                    }
+                    peer = new UdpPeer(from);
+                    peers.put(from, peer);
+                    server.addClient(peer);
+                }
+                // Answer every HELLO in case an earlier answer was lost
+                DatagramSession.sendControl(channel, from, DatagramSession.KIND_HELLO);
+            } else if (peer != null && kind == DatagramSession.KIND_DATA) {
+                peer.receive(receiveBuffer);
+            } else if (peer != null && kind == DatagramSession.KIND_BYE) {
+                System.out.println("Client disconnected");
+                peer.stop();
+            }
+        }
+    }
+
+    private void flushAll(long now) {
+        for (UdpPeer peer : peers.values()) {
+            if (now - peer.session.getLastReceiveNanos() > idleTimeoutNanos) {
+                System.out.println("UDP client idle, closing connection");
+                peer.stop();
+                continue;
+            }
+            try {
+                peer.session.flush(channel, peer.address, now);
+            } catch (IOException e) {
+                System.out.println("Error sending message to client: " + e.getMessage());
+                peer.stop();
+            }
+        }
+    }
+
+    private class UdpPeer implements ClientConnection {
+        private final SocketAddress address;
+        private final DatagramSession session = new DatagramSession(droppedPositions);
+        private final MessageRateLimiter rateLimiter = server.newRateLimiter();
+        private final Heartbeat heartbeat = new Heartbeat(System.nanoTime());
+        private volatile boolean running = true;
+
+        UdpPeer(SocketAddress address) {
+            this.address = address;
+        }
+
+        void receive(ByteBuffer packet) {
+            try {
+                session.receive(packet, frame -> server.onFrame(frame, this), System.nanoTime());
+            } catch (IOException e) {
+                System.out.println("Error handling client: " + e.getMessage());
+                stop();
+            } catch (RuntimeException e) {
+                // One bad datagram drops its peer, never the receive loop shared by all of them
+                System.out.println("Dropping UDP client after unexpected error: " + e);
+                stop();
+            }
+        }
+
+        @Override
+        public void sendFrame(GameMessage.MessageType type, int playerId, ByteBuffer frame) {
+            if (!running) return;
+            if (!session.offer(type, playerId, frame)) {
+                server.slowClientDisconnected();
+                stop();
+            }
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return session.pendingCount();
+        }
+
+        @Override
+        public long getDroppedPositions() {
+            return session.getDroppedPositions();
+        }
+
+        @Override
+        public MessageRateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
+
+        @Override
+        public Heartbeat getHeartbeat() {
+            return heartbeat;
+        }
+
+        @Override
+        public void stop() {
+            if (!running) return;
+            running = false;
+            peers.remove(address);
+            try {
+                DatagramSession.sendControl(channel, address, DatagramSession.KIND_BYE);
+            } catch (IOException e) {
+                // best effort
+            }
+            server.removeClient(this);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+// UdpTransport.java
+package com.fightinggame.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+class UdpTransport implements ClientTransport {
+    private static final int HELLO_ATTEMPTS = 10;
+    private static final int HELLO_INTERVAL_MS = 200;
+    private static final int RECEIVE_POLL_MS = 20;
+
+    private final InetSocketAddress serverAddress;
+    private final Consumer<GameMessage> inbox;
+    private final Runnable onClosed;
+    private final DatagramSession session = new DatagramSession(new LongAdder());
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(DatagramSession.MAX_DATAGRAM * 2);
+    private DatagramChannel channel;
+    private Selector selector;
+    private volatile boolean connected;
+    private Thread receiveThread;
+
+    UdpTransport(String address, int port, Consumer<GameMessage> inbox, Runnable onClosed) {
+        this.serverAddress = new InetSocketAddress(address, port);
+        this.inbox = inbox;
+        this.onClosed = onClosed;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        channel = DatagramChannel.open();
+        channel.connect(serverAddress);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        // UDP has no connection, so wait for the server to answer a HELLO
+        boolean answered = false;
+        for (int attempt = 0; attempt < HELLO_ATTEMPTS && !answered; attempt++) {
+            DatagramSession.sendControl(channel, null, DatagramSession.KIND_HELLO);
+            if (selector.select(HELLO_INTERVAL_MS) > 0) {
+                selector.selectedKeys().clear();
+                receiveBuffer.clear();
+                if (channel.read(receiveBuffer) > 0 && receiveBuffer.get(0) == DatagramSession.KIND_HELLO) {
+                    answered = true;
+                }
+            }
+        }
+        if (!answered) {
+            channel.close();
+            selector.close();
+            throw new IOException("No UDP reply from " + serverAddress);
+        }
+        connected = true;
+
+        receiveThread = ConnectionThreads.newThread("game-udp-receive", this::receiveLoop, true);
+        receiveThread.start();
+    }
+
+    private void receiveLoop() {
+        try {
+            while (connected) {
+                selector.select(RECEIVE_POLL_MS);
+                selector.selectedKeys().clear();
+                receiveBuffer.clear();
+                while (channel.read(receiveBuffer) > 0) {
+                    receiveBuffer.flip();
+                    byte kind = receiveBuffer.get();
+                    if (kind == DatagramSession.KIND_DATA) {
+                        session.receive(receiveBuffer, frame -> inbox.accept(MessageCodec.decodeFrame(frame)),
+                                System.nanoTime());
+                    } else if (kind == DatagramSession.KIND_BYE) {
+                        System.out.println("服務器關閉了連接");
+                        return;
+                    }
+                    receiveBuffer.clear();
+                }
+                session.flushReliable(channel, null, System.nanoTime());
+            }
+        } catch (Exception e) {
+            if (connected) {
+                System.out.println("接收消息時出錯: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void send(GameMessage message) throws IOException {
+        if (!session.offer(message.getType(), message.getPlayerId(), MessageCodec.encodeFrame(message))) {
+            throw new IOException("Too many unacknowledged events");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        session.flush(channel, null, System.nanoTime());
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        try {
+            DatagramSession.sendControl(channel, null, DatagramSession.KIND_BYE);
+        } catch (IOException e) {
+            // best effort
+        }
+        try {
+            channel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("Error during disconnect: " + e.getMessage());
+        }
+        onClosed.run();
+    }
+}
@@ -0,0 +1,117 @@
+// ClientPrediction.java
+package com.fightinggame.simulation;
+
+// 客戶端預測：本地輸入當幀就套用在自己的角色上，不等伺服器來回，同時按幀號保存
+// 還沒被伺服器確認的輸入，以及每一幀預測出來的狀態。伺服器狀態到達時退回到它，
+// 重新推演之後的輸入；推演結果和原本預測不同時，畫面上的差距在幾幀內慢慢收回，
+// 不會直接跳過去。
+//
+// 伺服器套用輸入的規則和這裡相同，所以只有輸入遺失、伺服器跳過落後的輸入或對局
+// 重新開始時才會預測錯誤。
+public class ClientPrediction {
+    // 最多保存的未確認輸入，約 2 秒，來回時間再長就直接用伺服器的狀態
+    private static final int INPUT_RING = 128;
+    // 每幀保留的修正距離，越小收回得越快
+    private static final double CORRECTION_DECAY = 0.8;
+    // 修正距離小於這個就不再畫
+    private static final double MIN_CORRECTION = 0.1;
+    // 差距大於這個（例如重新開始時回到起點）直接跳過去
+    private static final double MAX_SMOOTHED_CORRECTION = 100;
+
+    private final int seat;
+    private final PlayerState state = new PlayerState();
+    private final byte[] inputs = new byte[INPUT_RING];
+    private final PlayerState[] history = new PlayerState[INPUT_RING];
+    private final int[] historyTick = new int[INPUT_RING];
+    private int lastTick = -1;
+    private double correctionX;
+    private double correctionY;
+    private long reconciliations;
+    private long mispredictions;
+
+    public ClientPrediction(int seat, PlayerState initial) {
+        this.seat = seat;
+        state.copyFrom(initial);
+        for (int i = 0; i < INPUT_RING; i++) {
+            history[i] = new PlayerState();
+            historyTick[i] = -1;
+        }
+    }
+
+    public int getSeat() {
+        return seat;
+    }
+
+    // 本地這一幀的輸入，幀號和發給伺服器的一樣
+    public void apply(int tick, int buttons) {
+        int slot = tick % INPUT_RING;
+        inputs[slot] = (byte) buttons;
+        state.step(buttons);
+        history[slot].copyFrom(state);
+        historyTick[slot] = tick;
+        lastTick = tick;
+        correctionX *= CORRECTION_DECAY;
+        correctionY *= CORRECTION_DECAY;
+        if (Math.abs(correctionX) < MIN_CORRECTION && Math.abs(correctionY) < MIN_CORRECTION) {
+            correctionX = 0;
+            correctionY = 0;
+        }
+    }
+
+    // 伺服器套用到 lastInputTick 為止的輸入後，這個玩家的狀態是 server
+    public void reconcile(PlayerState server, int lastInputTick) {
+        // 只有本地預測過的那一幀才能比對
+        int slot = Math.floorMod(lastInputTick, INPUT_RING);
+        if (lastInputTick >= 0 && historyTick[slot] == lastInputTick) {
+            reconciliations++;
+            if (!history[slot].sameMotion(server)) {
+                mispredictions++;
+            }
+        }
+        double oldX = state.getX();
+        double oldY = state.getY();
+        state.copyFrom(server);
+        if (lastTick - lastInputTick < INPUT_RING) {
+            for (int tick = Math.max(lastInputTick + 1, 0); tick <= lastTick; tick++) {
+                state.step(inputs[tick % INPUT_RING]);
+                history[tick % INPUT_RING].copyFrom(state);
+            }
+        }
+        double dx = oldX + correctionX - state.getX();
+        double dy = oldY + correctionY - state.getY();
+        if (Math.abs(dx) > MAX_SMOOTHED_CORRECTION || Math.abs(dy) > MAX_SMOOTHED_CORRECTION) {
+            correctionX = 0;
+            correctionY = 0;
+        } else {
+            correctionX = dx;
+            correctionY = dy;
+        }
+    }
+
+    // 預測的狀態，分數和被擊中次數跟著最近一次的伺服器狀態
+    public PlayerState getState() {
+        return state;
+    }
+
+    // 畫面上的位置：預測位置加上還沒收回的修正
+    public double getRenderX() {
+        return state.getX() + correctionX;
+    }
+
+    public double getRenderY() {
+        return state.getY() + correctionY;
+    }
+
+    public long getReconciliations() {
+        return reconciliations;
+    }
+
+    public long getMispredictions() {
+        return mispredictions;
+    }
+
+    // 預測錯誤的比例（佔能比對的伺服器狀態）
+    public double getMispredictionRate() {
+        return reconciliations == 0 ? 0 : (double) mispredictions / reconciliations;
+    }
+}
@@ -0,0 +1,117 @@
+// MatchSimulation.java
+package com.fightinggame.simulation;
+
+// 對局規則：重力、落地、攻擊判定框、冷卻和計分，以固定的幀推進。數值和 Game 的
+// 本地模式相同，但不碰任何畫面物件，所以伺服器可以無頭執行，同一幀也可以重算很多次。
+public class MatchSimulation {
+    public static final int TICK_RATE = 60;
+    // 每幀的輸入按鍵
+    public static final int LEFT = 1;
+    public static final int RIGHT = 2;
+    public static final int JUMP = 4;
+    public static final int ATTACK = 8;
+    // 對局結束後任一方按下重新開始；回滾模式下雙方在同一幀重新開局
+    public static final int RESTART = 16;
+    public static final int WINNING_SCORE = 10;
+
+    static final double GRAVITY = 0.5;
+    static final double JUMP_FORCE = -15;
+    static final double MOVE_SPEED = 5;
+    static final double GROUND_Y = 500;            // 視窗高度減 100
+    static final int ATTACK_ACTIVE_TICKS = 9;      // 攻擊判定持續 150 毫秒
+    static final int ATTACK_COOLDOWN_TICKS = 30;   // 攻擊冷卻 500 毫秒
+    static final int SCORE_COOLDOWN_TICKS = 60;    // 得分冷卻 1000 毫秒
+    private static final double PLAYER1_START_X = 200;
+    private static final double PLAYER2_START_X = 600;
+    // 角色身體和攻擊框相對於角色座標的範圍，和 Player 畫出來的一樣
+    private static final double BODY_HALF_WIDTH = 15;
+    private static final double BODY_TOP = -20;
+    private static final double BODY_BOTTOM = 40;
+    private static final double ATTACK_NEAR = 30;
+    private static final double ATTACK_FAR = 70;
+    private static final double ATTACK_HEIGHT = 30;
+
+    private final PlayerState player1 = new PlayerState();
+    private final PlayerState player2 = new PlayerState();
+    private int tick;
+
+    public MatchSimulation() {
+        reset();
+    }
+
+    // 新的一局：雙方站在起點，分數歸零，幀號繼續往下數
+    public void reset() {
+        player1.copyFrom(new PlayerState(PLAYER1_START_X, GROUND_Y));
+        player2.copyFrom(new PlayerState(PLAYER2_START_X, GROUND_Y));
+        player2.setFacingLeft(true);
+    }
+
+    // 座位 1 是 Player 1，座位 2 是 Player 2
+    public PlayerState getPlayer(int seat) {
+        return seat == 1 ? player1 : player2;
+    }
+
+    public int getTick() {
+        return tick;
+    }
+
+    public void setTick(int tick) {
+        this.tick = tick;
+    }
+
+    // 雙方的輸入都在手上時，一次推進一整幀
+    public void step(int buttons1, int buttons2) {
+        if (isOver() && ((buttons1 | buttons2) & RESTART) != 0) {
+            reset();
+            tick++;
+            return;
+        }
+        player1.step(buttons1);
+        player2.step(buttons2);
+        finishTick();
+    }
+
+    // 伺服器按各自的輸入到達情況分別推進玩家，最後再用 finishTick 判定命中
+    public void stepPlayer(int seat, int buttons) {
+        getPlayer(seat).step(buttons);
+    }
+
+    public void finishTick() {
+        if (!isOver()) {
+            boolean player1Hits = hits(player1, player2);
+            boolean player2Hits = hits(player2, player1);
+            if (player1Hits) {
+                player1.scored();
+                player2.hit();
+            }
+            if (player2Hits) {
+                player2.scored();
+                player1.hit();
+            }
+        }
+        tick++;
+    }
+
+    // 攻擊判定中、得分冷卻已過，而且攻擊框碰到對方身體
+    private static boolean hits(PlayerState attacker, PlayerState defender) {
+        if (!attacker.isAttacking() || attacker.getScoreCooldownTicks() > 0) {
+            return false;
+        }
+        double left = attacker.isFacingLeft() ? attacker.getX() - ATTACK_FAR : attacker.getX() + ATTACK_NEAR;
+        double right = left + (ATTACK_FAR - ATTACK_NEAR);
+        double top = attacker.getY();
+        double bottom = top + ATTACK_HEIGHT;
+        return left <= defender.getX() + BODY_HALF_WIDTH && defender.getX() - BODY_HALF_WIDTH <= right
+                && top <= defender.getY() + BODY_BOTTOM && defender.getY() + BODY_TOP <= bottom;
+    }
+
+    public boolean isOver() {
+        return player1.getScore() >= WINNING_SCORE || player2.getScore() >= WINNING_SCORE;
+    }
+
+    public void copyFrom(MatchSimulation other) {
+        player1.copyFrom(other.player1);
+        player2.copyFrom(other.player2);
+        tick = other.tick;
+    }
+}
@@ -0,0 +1,188 @@
+// PlayerState.java
+package com.fightinggame.simulation;
+
+// 一個玩家在對局中的全部狀態。不含任何 JavaFX 物件，伺服器可以直接推進，
+// 也可以隨時複製一份保存或還原
+public class PlayerState {
+    private double x;
+    private double y;
+    private double velocityY;
+    private boolean onGround;
+    private boolean facingLeft;
+    private boolean moving;
+    private int attackTicks;        // 攻擊判定還剩幾幀
+    private int cooldownTicks;      // 距離下次可以出手的幀數
+    private int scoreCooldownTicks; // 距離下次可以得分的幀數
+    private int hitsTaken;          // 被擊中的次數，客戶端據此播放受傷動畫
+    private int score;
+
+    public PlayerState() {
+    }
+
+    PlayerState(double x, double y) {
+        this.x = x;
+        this.y = y;
+        this.onGround = true;
+    }
+
+    // 一幀：移動、跳躍、冷卻和出手，然後重力和落地，順序和 Game 的本地模式一樣
+    void step(int buttons) {
+        moving = false;
+        if ((buttons & MatchSimulation.LEFT) != 0) {
+            x -= MatchSimulation.MOVE_SPEED;
+            facingLeft = true;
+            moving = true;
+        }
+        if ((buttons & MatchSimulation.RIGHT) != 0) {
+            x += MatchSimulation.MOVE_SPEED;
+            facingLeft = false;
+            moving = true;
+        }
+        if ((buttons & MatchSimulation.JUMP) != 0 && onGround) {
+            velocityY = MatchSimulation.JUMP_FORCE;
+            onGround = false;
+        }
+        if (attackTicks > 0) {
+            attackTicks--;
+        }
+        if (cooldownTicks > 0) {
+            cooldownTicks--;
+        }
+        if (scoreCooldownTicks > 0) {
+            scoreCooldownTicks--;
+        }
+        if ((buttons & MatchSimulation.ATTACK) != 0 && cooldownTicks == 0) {
+            attackTicks = MatchSimulation.ATTACK_ACTIVE_TICKS;
+            cooldownTicks = MatchSimulation.ATTACK_COOLDOWN_TICKS;
+        }
+        velocityY += MatchSimulation.GRAVITY;
+        y += velocityY;
+        if (y >= MatchSimulation.GROUND_Y) {
+            y = MatchSimulation.GROUND_Y;
+            onGround = true;
+            velocityY = 0;
+        }
+    }
+
+    void scored() {
+        score++;
+        scoreCooldownTicks = MatchSimulation.SCORE_COOLDOWN_TICKS;
+    }
+
+    void hit() {
+        hitsTaken++;
+    }
+
+    public void copyFrom(PlayerState other) {
+        x = other.x;
+        y = other.y;
+        velocityY = other.velocityY;
+        onGround = other.onGround;
+        facingLeft = other.facingLeft;
+        moving = other.moving;
+        attackTicks = other.attackTicks;
+        cooldownTicks = other.cooldownTicks;
+        scoreCooldownTicks = other.scoreCooldownTicks;
+        hitsTaken = other.hitsTaken;
+        score = other.score;
+    }
+
+    // 只比較自己的輸入決定的部分；分數、被擊中次數和得分冷卻由對局判定，預測不了
+    public boolean sameMotion(PlayerState other) {
+        return x == other.x && y == other.y && velocityY == other.velocityY && onGround == other.onGround
+                && facingLeft == other.facingLeft && moving == other.moving
+                && attackTicks == other.attackTicks && cooldownTicks == other.cooldownTicks;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public void setX(double x) {
+        this.x = x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public void setY(double y) {
+        this.y = y;
+    }
+
+    public double getVelocityY() {
+        return velocityY;
+    }
+
+    public void setVelocityY(double velocityY) {
+        this.velocityY = velocityY;
+    }
+
+    public boolean isOnGround() {
+        return onGround;
+    }
+
+    public void setOnGround(boolean onGround) {
+        this.onGround = onGround;
+    }
+
+    public boolean isFacingLeft() {
+        return facingLeft;
+    }
+
+    public void setFacingLeft(boolean facingLeft) {
+        this.facingLeft = facingLeft;
+    }
+
+    public boolean isMoving() {
+        return moving;
+    }
+
+    public void setMoving(boolean moving) {
+        this.moving = moving;
+    }
+
+    public boolean isAttacking() {
+        return attackTicks > 0;
+    }
+
+    public int getAttackTicks() {
+        return attackTicks;
+    }
+
+    public void setAttackTicks(int attackTicks) {
+        this.attackTicks = attackTicks;
+    }
+
+    public int getCooldownTicks() {
+        return cooldownTicks;
+    }
+
+    public void setCooldownTicks(int cooldownTicks) {
+        this.cooldownTicks = cooldownTicks;
+    }
+
+    public int getScoreCooldownTicks() {
+        return scoreCooldownTicks;
+    }
+
+    public void setScoreCooldownTicks(int scoreCooldownTicks) {
+        this.scoreCooldownTicks = scoreCooldownTicks;
+    }
+
+    public int getHitsTaken() {
+        return hitsTaken;
+    }
+
+    public void setHitsTaken(int hitsTaken) {
+        this.hitsTaken = hitsTaken;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public void setScore(int score) {
+        this.score = score;
+    }
+}
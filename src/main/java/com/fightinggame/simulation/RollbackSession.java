@@ -0,0 +1,151 @@
+// RollbackSession.java
+package com.fightinggame.simulation;
+
+// 回滾模式（GGPO 式）：雙方只交換每幀的按鍵。本地按鍵當幀就用，不加任何延遲；
+// 對手的按鍵還沒到時先假設他繼續按著上一幀的鍵。對手的按鍵到了而且和假設的不同時，
+// 還原到那一幀之前保存的狀態，用正確的按鍵重算到目前這一幀，全部在同一個畫面幀內完成。
+//
+// 每幀推進前保存一份完整狀態，只是複製兩個 PlayerState，所以保存和還原都很便宜。
+// 對手的按鍵落後超過 MAX_ROLLBACK_TICKS 幀時本地暫停等它；兩邊一快一慢時，
+// 領先的一方偶爾暫停一幀，讓雙方需要回滾的幀數差不多。
+public class RollbackSession {
+    // 最多回滾的幀數，約 200 毫秒，足夠應付 150 毫秒左右的來回時間
+    public static final int MAX_ROLLBACK_TICKS = 12;
+    // 保存的幀數，要容得下回滾的範圍和對手領先時先收到的按鍵
+    private static final int RING = 64;
+    // 兩次時間同步暫停之間至少隔這麼多幀
+    private static final int SYNC_INTERVAL_TICKS = 10;
+
+    private final int localSeat;
+    private final MatchSimulation simulation = new MatchSimulation();
+    // 每一幀推進之前的狀態
+    private final MatchSimulation[] saved = new MatchSimulation[RING];
+    private final byte[] localInputs = new byte[RING];
+    // 收到的對手按鍵，還沒收到的幀放的是預測值
+    private final byte[] remoteInputs = new byte[RING];
+    private int tick;
+    private int remoteTick = -1;
+    private int peerAdvantage;
+    private int firstMispredicted = -1;
+    private int ticksSinceSyncWait;
+    private long rollbacks;
+    private long resimulatedTicks;
+    private int maxRollback;
+    private long waits;
+
+    public RollbackSession(int localSeat) {
+        this.localSeat = localSeat;
+        for (int i = 0; i < RING; i++) {
+            saved[i] = new MatchSimulation();
+        }
+    }
+
+    // 下一個要推進的幀，也是本地下一個按鍵的幀號
+    public int getTick() {
+        return tick;
+    }
+
+    // 收到對手的按鍵到第幾幀為止（連續的）
+    public int getRemoteTick() {
+        return remoteTick;
+    }
+
+    public MatchSimulation getSimulation() {
+        return simulation;
+    }
+
+    // 對手某一幀的按鍵。只接連續的下一幀，重複的略過，中間缺的等對方重送
+    public void addRemoteInput(int remote, int buttons) {
+        if (remote != remoteTick + 1 || remote >= tick + RING - MAX_ROLLBACK_TICKS - 1) {
+            return;
+        }
+        int slot = remote % RING;
+        if (remote < tick && remoteInputs[slot] != (byte) buttons
+                && (firstMispredicted < 0 || remote < firstMispredicted)) {
+            firstMispredicted = remote;
+        }
+        remoteInputs[slot] = (byte) buttons;
+        remoteTick = remote;
+    }
+
+    // 對手送出第 remoteLastTick 幀時，手上有本地按鍵到第 localAcked 幀，
+    // 兩者的差就是對手領先的幀數
+    public void onRemoteProgress(int remoteLastTick, int localAcked) {
+        peerAdvantage = remoteLastTick - localAcked;
+    }
+
+    // 一個畫面幀：先修正預測錯的幀，再用本地按鍵推進一幀。
+    // 回傳 false 表示這幀要等對手，本地按鍵沒有用掉
+    public boolean advance(int buttons) {
+        rollBack();
+        if (tick - remoteTick > MAX_ROLLBACK_TICKS) {
+            waits++;
+            return false;
+        }
+        int localAdvantage = tick - remoteTick;
+        if (ticksSinceSyncWait >= SYNC_INTERVAL_TICKS && (localAdvantage - peerAdvantage) / 2 >= 1) {
+            ticksSinceSyncWait = 0;
+            waits++;
+            return false;
+        }
+        ticksSinceSyncWait++;
+        int slot = tick % RING;
+        saved[slot].copyFrom(simulation);
+        localInputs[slot] = (byte) buttons;
+        if (tick > remoteTick) {
+            remoteInputs[slot] = predictedRemote();
+        }
+        step(tick);
+        tick++;
+        return true;
+    }
+
+    private byte predictedRemote() {
+        return remoteTick < 0 ? 0 : remoteInputs[remoteTick % RING];
+    }
+
+    private void rollBack() {
+        if (firstMispredicted < 0) {
+            return;
+        }
+        int from = firstMispredicted;
+        firstMispredicted = -1;
+        simulation.copyFrom(saved[from % RING]);
+        for (int resimulated = from; resimulated < tick; resimulated++) {
+            int slot = resimulated % RING;
+            saved[slot].copyFrom(simulation);
+            if (resimulated > remoteTick) {
+                remoteInputs[slot] = predictedRemote();
+            }
+            step(resimulated);
+        }
+        rollbacks++;
+        resimulatedTicks += tick - from;
+        maxRollback = Math.max(maxRollback, tick - from);
+    }
+
+    private void step(int stepped) {
+        int slot = stepped % RING;
+        int local = localInputs[slot];
+        int remote = remoteInputs[slot];
+        simulation.step(localSeat == 1 ? local : remote, localSeat == 1 ? remote : local);
+    }
+
+    public long getRollbacks() {
+        return rollbacks;
+    }
+
+    // 平均每次回滾重算的幀數
+    public double getAverageRollback() {
+        return rollbacks == 0 ? 0 : (double) resimulatedTicks / rollbacks;
+    }
+
+    public int getMaxRollback() {
+        return maxRollback;
+    }
+
+    // 等對手或時間同步而暫停的幀數
+    public long getWaits() {
+        return waits;
+    }
+}
@@ -0,0 +1,110 @@
+// DatagramSessionTest.java
+package com.fightinggame.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// The reliable event channel between two sessions over loopback, with datagrams
+// dropped on purpose in both directions
+class DatagramSessionTest {
+    private static final int EVENTS = 300;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private final Random random = new Random(7);
+    private DatagramChannel senderChannel;
+    private DatagramChannel receiverChannel;
+    private SocketAddress senderAddress;
+    private SocketAddress receiverAddress;
+
+    @BeforeEach
+    void open() throws IOException {
+        senderChannel = bind();
+        receiverChannel = bind();
+        senderAddress = senderChannel.getLocalAddress();
+        receiverAddress = receiverChannel.getLocalAddress();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        senderChannel.close();
+        receiverChannel.close();
+    }
+
+    private static DatagramChannel bind() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    @Test
+    void deliversEveryEventInOrderDespiteLoss() throws IOException {
+        DatagramSession sender = new DatagramSession(new LongAdder());
+        DatagramSession receiver = new DatagramSession(new LongAdder());
+        List<Integer> delivered = new ArrayList<>();
+        int offered = 0;
+        long now = System.nanoTime();
+        for (int tick = 0; tick < 3000 && delivered.size() < EVENTS; tick++) {
+            for (int i = 0; i < 4 && offered < EVENTS; i++, offered++) {
+                assertTrue(sender.offer(GameMessage.MessageType.GAME_STATE, 1,
+                        MessageCodec.encodeFrame(new GameMessage(GameMessage.MessageType.GAME_STATE,
+                                new int[]{offered, 0}, 1))));
+            }
+            sender.flush(senderChannel, receiverAddress, now);
+            pump(receiverChannel, receiver, delivered, now);
+            receiver.flushReliable(receiverChannel, senderAddress, now);
+            pump(senderChannel, sender, new ArrayList<>(), now);
+            now += TICK_NANOS;
+        }
+        assertEquals(EVENTS, delivered.size());
+        for (int i = 0; i < EVENTS; i++) {
+            assertEquals(i, delivered.get(i));
+        }
+        assertTrue(sender.getRetransmits() > 0);
+        assertEquals(0, sender.pendingCount());
+    }
+
+    @Test
+    void rejectsTruncatedDatagrams() {
+        DatagramSession session = new DatagramSession(new LongAdder());
+        // Nothing after the kind byte
+        assertThrows(ProtocolException.class, () -> session.receive(ByteBuffer.allocate(0), frame -> { }, 0));
+        // Ack, then a channel byte with no sequence
+        assertThrows(ProtocolException.class,
+                () -> session.receive(ByteBuffer.wrap(new byte[]{0, 1}), frame -> { }, 0));
+        // State entry whose frame holds only a type tag
+        assertThrows(ProtocolException.class,
+                () -> session.receive(ByteBuffer.wrap(new byte[]{0, 0, 1, 1, 0}), frame -> { }, 0));
+    }
+
+    // Reads what arrived, dropping 30% of the datagrams
+    private void pump(DatagramChannel channel, DatagramSession session, List<Integer> delivered, long now)
+            throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(DatagramSession.MAX_DATAGRAM);
+        while (channel.receive(packet) != null) {
+            packet.flip();
+            if (random.nextInt(10) >= 3 && packet.get() == DatagramSession.KIND_DATA) {
+                session.receive(packet, frame -> delivered.add(
+                        ((int[]) MessageCodec.decodeFrame(frame).getData())[0]), now);
+            }
+            packet.clear();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+// GameGatewayTest.java
+package com.fightinggame.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// The gateway picks the backend from the room id in the first frame, whichever of
+// JOIN_ROOM, SPECTATE and RESUME it is
+class GameGatewayTest {
+    private static final int ACCEPT_TIMEOUT_MS = 2000;
+    private static final int POLL_MS = 20;
+
+    private final ServerSocket[] backends = new ServerSocket[2];
+    private final HashRing ring = new HashRing();
+    private GameGateway gateway;
+    private int gatewayPort;
+
+    @BeforeEach
+    void start() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            gatewayPort = probe.getLocalPort();
+        }
+        gateway = new GameGateway(gatewayPort);
+        for (int i = 0; i < backends.length; i++) {
+            backends[i] = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            backends[i].setSoTimeout(POLL_MS);
+            String host = InetAddress.getLoopbackAddress().getHostAddress();
+            gateway.addBackend(host, backends[i].getLocalPort());
+            ring.add(new InetSocketAddress(host, backends[i].getLocalPort()));
+        }
+        gateway.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        gateway.stop();
+        for (ServerSocket backend : backends) {
+            backend.close();
+        }
+    }
+
+    @Test
+    void firstFrameNamesTheRoom() throws IOException {
+        assertEquals("arena", GameGateway.roomOf(MessageCodec.encodeFrame(
+                new GameMessage(GameMessage.MessageType.JOIN_ROOM, "arena", 1))));
+        assertEquals("arena", GameGateway.roomOf(MessageCodec.encodeFrame(
+                new GameMessage(GameMessage.MessageType.SPECTATE, "arena", 0))));
+        assertEquals("arena", GameGateway.roomOf(MessageCodec.encodeFrame(
+                new GameMessage(GameMessage.MessageType.RESUME, new ResumeRequest("arena", 42L), 2))));
+        assertEquals(GameServer.DEFAULT_ROOM, GameGateway.roomOf(MessageCodec.encodeFrame(
+                new GameMessage(GameMessage.MessageType.QUEUE_MATCH, 1500, 0))));
+    }
+
+    @Test
+    void resumeAndSpectateReachTheRoomsBackend() throws IOException {
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < 8; i++) {
+            String roomId = "room-" + i;
+            int expected = ring.lookup(roomId).getPort();
+            used.add(expected);
+            assertEquals(expected, route(new GameMessage(GameMessage.MessageType.RESUME,
+                    new ResumeRequest(roomId, 1000L + i), 1)));
+            assertEquals(expected, route(new GameMessage(GameMessage.MessageType.SPECTATE, roomId, 0)));
+        }
+        // Otherwise every room could have landed on the default room's backend by chance
+        assertEquals(2, used.size());
+    }
+
+    // Sends the frame through the gateway and returns the port of the backend that got it
+    private int route(GameMessage message) throws IOException {
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), gatewayPort)) {
+            ByteBuffer frame = MessageCodec.encodeFrame(message);
+            OutputStream out = client.getOutputStream();
+            out.write(frame.array(), frame.position(), frame.remaining());
+            out.flush();
+            long deadline = System.currentTimeMillis() + ACCEPT_TIMEOUT_MS;
+            while (System.currentTimeMillis() < deadline) {
+                for (ServerSocket backend : backends) {
+                    try (Socket accepted = acceptNow(backend)) {
+                        if (accepted != null) {
+                            accepted.setSoTimeout(ACCEPT_TIMEOUT_MS);
+                            GameMessage forwarded = new MessageCodec().readFrame(accepted.getInputStream());
+                            assertEquals(message.getType(), forwarded.getType());
+                            return backend.getLocalPort();
+                        }
+                    }
+                }
+            }
+            throw new AssertionError("No backend got " + message.getType());
+        }
+    }
+
+    // Only one backend gets a connection, so each is polled briefly in turn
+    private static Socket acceptNow(ServerSocket backend) throws IOException {
+        try {
+            return backend.accept();
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+}
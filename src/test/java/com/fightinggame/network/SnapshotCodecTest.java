@@ -0,0 +1,90 @@
+// SnapshotCodecTest.java
+package com.fightinggame.network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// Delta snapshots against the acknowledged baseline, over a lossy link
+class SnapshotCodecTest {
+    private static final int TICKS = 60 * 60;
+
+    @Test
+    void decodesEverySnapshotThatArrivesDespiteLoss() throws ProtocolException {
+        Random random = new Random(42);
+        SnapshotEncoder encoder = new SnapshotEncoder();
+        SnapshotDecoder decoder = new SnapshotDecoder();
+        int received = 0;
+        int deltas = 0;
+        double[] lastSent = null;
+        double[] lastDecoded = null;
+        for (int tick = 0; tick < TICKS; tick++) {
+            double x = 400 + 300 * Math.sin(tick / 40.0);
+            double y = tick % 120 < 30 ? 500 - (tick % 120) * 3 : 500;
+            boolean attacking = tick % 90 < 9;
+            PositionSnapshot snapshot = encoder.encode(x, y, attacking, PositionSnapshot.NO_SEQ);
+            if (snapshot == null) {
+                continue;
+            }
+            lastSent = new double[]{
+                PositionSnapshot.dequantize(PositionSnapshot.quantize(x)),
+                PositionSnapshot.dequantize(PositionSnapshot.quantize(y)),
+                attacking ? 1 : 0
+            };
+            // 20% loss each way, acks included
+            if (random.nextInt(5) == 0) {
+                continue;
+            }
+            GameMessage message = MessageCodec.decodeFrame(MessageCodec.encodeFrame(
+                    new GameMessage(GameMessage.MessageType.PLAYER_POSITION, snapshot, 1)));
+            PositionSnapshot wire = (PositionSnapshot) message.getData();
+            if (!wire.isKeyframe()) {
+                deltas++;
+            }
+            lastDecoded = decoder.decode(wire);
+            assertNotNull(lastDecoded, "baseline of seq " + wire.getSeq() + " was never acknowledged");
+            assertArrayEquals(lastSent, lastDecoded, 0.0);
+            received++;
+            if (random.nextInt(5) != 0) {
+                encoder.acknowledge(decoder.getLastReceivedSeq());
+            }
+        }
+        assertTrue(received > TICKS / 2);
+        assertTrue(deltas > received / 2, "most snapshots should be deltas, got " + deltas + "/" + received);
+        assertNotNull(lastDecoded);
+    }
+
+    @Test
+    void skipsUnchangedPositionsUntilKeyframeIsDue() {
+        SnapshotEncoder encoder = new SnapshotEncoder();
+        PositionSnapshot first = encoder.encode(100, 500, false, PositionSnapshot.NO_SEQ);
+        assertNotNull(first);
+        assertTrue(first.isKeyframe());
+        for (int tick = 0; tick < SnapshotEncoder.KEYFRAME_INTERVAL; tick++) {
+            assertNull(encoder.encode(100, 500, false, PositionSnapshot.NO_SEQ));
+        }
+        PositionSnapshot keyframe = encoder.encode(100, 500, false, PositionSnapshot.NO_SEQ);
+        assertNotNull(keyframe);
+        assertTrue(keyframe.isKeyframe());
+        assertEquals(SnapshotEncoder.KEYFRAME_INTERVAL, encoder.getSuppressedCount());
+    }
+
+    @Test
+    void sendsKeyframesUntilSomethingIsAcknowledged() {
+        SnapshotEncoder encoder = new SnapshotEncoder();
+        for (int tick = 0; tick < 10; tick++) {
+            assertTrue(encoder.encode(tick * 10, 500, false, PositionSnapshot.NO_SEQ).isKeyframe());
+        }
+        encoder.acknowledge(9);
+        PositionSnapshot delta = encoder.encode(200, 500, false, PositionSnapshot.NO_SEQ);
+        assertFalse(delta.isKeyframe());
+        assertEquals(9, delta.getBaselineSeq());
+    }
+}